@@ -0,0 +1,118 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Synthetic inputs shaped like the output of a decompile-and-patch pipeline: classes with a {@code LineNumberTable}
+ * entry per line, Vineflower line maps that shift every line, and patches that add a line every few lines.
+ */
+final class Fixtures {
+    static final int LINE_SPACING = 10;
+
+    private Fixtures() {}
+
+    /**
+     * {@return a class file with {@code methods} methods, each covering {@code linesPerMethod} consecutive lines}
+     */
+    static byte[] classFile(String name, int methods, int linesPerMethod) {
+        var writer = new ClassWriter(ClassWriter.COMPUTE_MAXS);
+        writer.visit(Opcodes.V21, Opcodes.ACC_PUBLIC, name, null, "java/lang/Object", null);
+        int line = 1;
+        for (int i = 0; i < methods; i++) {
+            var method = writer.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "method" + i, "()V", null, null);
+            method.visitCode();
+            for (int j = 0; j < linesPerMethod; j++) {
+                var label = new Label();
+                method.visitLabel(label);
+                method.visitLineNumber(line++, label);
+                method.visitInsn(Opcodes.NOP);
+            }
+            method.visitInsn(Opcodes.RETURN);
+            method.visitMaxs(0, 0);
+            method.visitEnd();
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /**
+     * {@return a Vineflower line map extra field mapping each line from {@code 1} to {@code lines} two lines down}
+     */
+    static byte[] vineflowerExtra(int lines) {
+        var buffer = ByteBuffer.allocate(5 + lines * 4).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putShort((short) 0x4646);
+        buffer.putShort((short) (1 + lines * 4));
+        buffer.put((byte) 1);
+        for (int line = 1; line <= lines; line++) {
+            buffer.putShort((short) line).putShort((short) (line + 2));
+        }
+        return buffer.array();
+    }
+
+    /**
+     * {@return a unified diff with {@code hunks} hunks, each replacing one line with two, {@link #LINE_SPACING} lines
+     * apart}
+     */
+    static byte[] patch(String name, int hunks) {
+        var builder = new StringBuilder();
+        builder.append("--- a/").append(name).append(".java\n");
+        builder.append("+++ b/").append(name).append(".java\n");
+        for (int i = 0; i < hunks; i++) {
+            int start = i * LINE_SPACING + 1;
+            builder.append("@@ -").append(start).append(",4 +").append(start + i).append(",5 @@\n");
+            builder.append(" context\n-removed\n+added\n+added\n context\n context\n");
+        }
+        return builder.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes an input jar of {@code classes} classes, every fourth with a nested class, along with matching Vineflower
+     * output and patch archives.
+     */
+    static void writeInputs(Path jar, Path vineflower, Path patches, int classes, int methods, int linesPerMethod) throws IOException {
+        int lines = methods * linesPerMethod;
+        var extra = vineflowerExtra(lines);
+        try (var jarOut = new ZipOutputStream(Files.newOutputStream(jar));
+             var vineflowerOut = new ZipOutputStream(Files.newOutputStream(vineflower));
+             var patchesOut = new ZipOutputStream(Files.newOutputStream(patches))) {
+            for (int i = 0; i < classes; i++) {
+                var name = "dev/lukebemish/linemapper/fixture/Class" + i;
+                put(jarOut, name + ".class", classFile(name, methods, linesPerMethod), null);
+                if (i % 4 == 0) {
+                    put(jarOut, name + "$Inner.class", classFile(name + "$Inner", 1, linesPerMethod), null);
+                }
+                put(vineflowerOut, name + ".java", new byte[0], extra);
+                put(patchesOut, name + ".java.patch", patch(name, lines / LINE_SPACING), null);
+            }
+        }
+    }
+
+    static void deleteRecursively(Path directory) throws IOException {
+        try (var paths = Files.walk(directory)) {
+            for (var path : paths.sorted((a, b) -> b.getNameCount() - a.getNameCount()).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static void put(ZipOutputStream out, String name, byte[] contents, byte[] extra) throws IOException {
+        var entry = new ZipEntry(name);
+        if (extra != null) {
+            entry.setExtra(extra);
+        }
+        out.putNextEntry(entry);
+        out.write(contents);
+        out.closeEntry();
+    }
+}
@@ -0,0 +1,93 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The cost of each rewritten class on a worker, from reading it out of the jar to handing its compressed bytes back to
+ * the pool as the writer would. Run with {@code -prof gc}, where {@code gc.alloc.rate.norm} is the bytes allocated per
+ * class.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@OperationsPerInvocation(EntryAllocationBenchmark.CLASS_ENTRIES)
+public class EntryAllocationBenchmark {
+    static final int CLASSES = 1000;
+    // Every fourth fixture class has a nested class
+    static final int CLASS_ENTRIES = CLASSES + CLASSES / 4;
+
+    @Param({"8", "64"})
+    public int methods;
+
+    @Param({"16"})
+    public int linesPerMethod;
+
+    @Param({"false"})
+    public boolean stored;
+
+    @Param({"" + Main.DEFAULT_BATCH_SIZE})
+    public int batchSize;
+
+    private Path directory;
+    private ExecutorService executor;
+    private MappingSet mappings;
+    private ArchiveReader archive;
+    private JarRemapper remapper;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("linemapper-jmh");
+        var input = directory.resolve("input.jar");
+        var vineflower = directory.resolve("vineflower.zip");
+        var patches = directory.resolve("patches.zip");
+        Fixtures.writeInputs(input, vineflower, patches, CLASSES, methods, linesPerMethod);
+        executor = Executors.newWorkStealingPool(1);
+        mappings = MappingSet.load(List.of(vineflower), List.of(patches), List.of(), false, executor);
+        archive = ArchiveReader.open(input);
+        remapper = new JarRemapper(executor, batchSize, new RemapOptions(-1, stored, null, null), new RunMetrics(), Thread.ofPlatform().daemon().factory());
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        archive.close();
+        mappings.close();
+        executor.shutdownNow();
+        Fixtures.deleteRecursively(directory);
+    }
+
+    @Benchmark
+    public void mapClass(Blackhole blackhole) throws IOException {
+        var lineMappings = mappings.mappings();
+        for (var entry : archive.entries()) {
+            if (entry.isClass()) {
+                var mapped = remapper.mapEntry(archive, lineMappings, null, null, entry);
+                blackhole.consume(mapped);
+                remapper.release(mapped);
+            }
+        }
+    }
+}
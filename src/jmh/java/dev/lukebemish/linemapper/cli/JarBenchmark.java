@@ -0,0 +1,133 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+
+/**
+ * Whole-jar throughput, for comparing the command line options on a given machine. Pass {@code -p} to JMH to try
+ * other values, for example {@code -p batchSize=64,256,1024}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class JarBenchmark {
+    @Param({"10000", "100000"})
+    public int classes;
+
+    @Param({"8"})
+    public int methods;
+
+    @Param({"16"})
+    public int linesPerMethod;
+
+    @Param({"" + Main.DEFAULT_BATCH_SIZE})
+    public int batchSize;
+
+    @Param({"-1"})
+    public int compressionLevel;
+
+    @Param({"false"})
+    public boolean stored;
+
+    @Param({"false"})
+    public boolean lazyMappings;
+
+    @Param({"1"})
+    public int jars;
+
+    private Path directory;
+    private Path input;
+    private Path vineflower;
+    private Path patches;
+    private ExecutorService executor;
+    private MappingSet mappings;
+    private ArchiveReader archive;
+
+    @Setup
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("linemapper-jmh");
+        input = directory.resolve("input.jar");
+        vineflower = directory.resolve("vineflower.zip");
+        patches = directory.resolve("patches.zip");
+        Fixtures.writeInputs(input, vineflower, patches, classes, methods, linesPerMethod);
+        executor = Executors.newWorkStealingPool(Runtime.getRuntime().availableProcessors());
+        mappings = MappingSet.load(List.of(vineflower), List.of(patches), List.of(), lazyMappings, executor);
+        archive = ArchiveReader.open(input);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        archive.close();
+        mappings.close();
+        executor.shutdownNow();
+        Fixtures.deleteRecursively(directory);
+    }
+
+    /**
+     * A cold run from the command line, loading the mappings and starting a worker pool, then remapping the jar
+     * {@code jars} times over as a batch.
+     */
+    @Benchmark
+    public void remapJar() {
+        var main = new Main();
+        main.inputs = Collections.nCopies(jars, input);
+        main.outputs = IntStream.range(0, jars).mapToObj(i -> directory.resolve("output-" + i + ".jar")).toList();
+        main.vineflowerPaths = List.of(vineflower);
+        main.patchPaths = List.of(patches);
+        main.batchSize = batchSize;
+        main.compressionLevel = compressionLevel;
+        main.stored = stored;
+        main.lazyMappings = lazyMappings;
+        main.run();
+    }
+
+    /**
+     * A run with mappings and worker pool already warm, as through {@link LineMapper} or a daemon.
+     */
+    @Benchmark
+    public void remapJarWarm() throws IOException {
+        new JarRemapper(executor, batchSize, options(), new RunMetrics(), Thread.ofPlatform().daemon().factory()).run(mappings.mappings(), null, input, directory.resolve("output.jar"));
+    }
+
+    /**
+     * Every entry of the jar through {@link JarRemapper#mapEntry} on one thread, with the mappings already loaded.
+     */
+    @Benchmark
+    public void mapEntries(Blackhole blackhole) throws IOException {
+        var remapper = new JarRemapper(executor, batchSize, options(), new RunMetrics(), Thread.ofPlatform().daemon().factory());
+        var lineMappings = mappings.mappings();
+        for (var entry : archive.entries()) {
+            var mapped = remapper.mapEntry(archive, lineMappings, null, null, entry);
+            blackhole.consume(mapped);
+            remapper.release(mapped);
+        }
+    }
+
+    private RemapOptions options() {
+        return new RemapOptions(compressionLevel, stored, null, null);
+    }
+}
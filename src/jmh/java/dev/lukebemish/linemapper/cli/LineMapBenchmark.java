@@ -0,0 +1,50 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LineMapBenchmark {
+    // The extra field's length is a 16-bit value, which caps a Vineflower map at 8191 lines
+    @Param({"100", "1000", "8191"})
+    public int lines;
+
+    private byte[] extra;
+    private LineTable lineMap;
+    private List<SingleFileOffset> offsets;
+
+    @Setup
+    public void setup() {
+        extra = Fixtures.vineflowerExtra(lines);
+        lineMap = LineMappings.getLineMap(extra);
+        var patch = Fixtures.patch("Fixture", lines / Fixtures.LINE_SPACING);
+        offsets = List.of(SingleFileOffset.fromPatch("Fixture", patch, patch.length));
+    }
+
+    @Benchmark
+    public LineTable getLineMap() {
+        return LineMappings.getLineMap(extra);
+    }
+
+    @Benchmark
+    public LineRemapper compose() {
+        return LineRemapper.compose(lineMap, offsets);
+    }
+}
@@ -0,0 +1,68 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LineNumberPatcherBenchmark {
+    @Param({"10", "100", "1000"})
+    public int methods;
+
+    @Param({"16"})
+    public int linesPerMethod;
+
+    private byte[] contents;
+    private byte[] scratch;
+    private LineRemapper remapper;
+    private BufferPool buffers;
+
+    @Setup
+    public void setup() {
+        contents = Fixtures.classFile("Fixture", methods, linesPerMethod);
+        scratch = new byte[contents.length];
+        buffers = new BufferPool(1);
+        int lines = methods * linesPerMethod;
+        var patch = Fixtures.patch("Fixture", lines / Fixtures.LINE_SPACING);
+        var lineMap = LineMappings.getLineMap(Fixtures.vineflowerExtra(Math.min(lines, 8191)));
+        remapper = LineRemapper.compose(lineMap, List.of(SingleFileOffset.fromPatch("Fixture", patch, patch.length)));
+    }
+
+    /**
+     * Patching is done in place, so each invocation starts from a fresh copy of the class, as inflating it would give.
+     */
+    @Benchmark
+    public boolean patch() {
+        System.arraycopy(contents, 0, scratch, 0, contents.length);
+        return LineNumberPatcher.patch(scratch, scratch.length, remapper);
+    }
+
+    /**
+     * What {@link JarRemapper#mapEntry} does for a remapped class that has no cached result, short of reading the jar.
+     */
+    @Benchmark
+    public ArchiveWriter.Compressed patchAndCompress() {
+        System.arraycopy(contents, 0, scratch, 0, contents.length);
+        LineNumberPatcher.patch(scratch, scratch.length, remapper);
+        var compressed = ArchiveWriter.compress(scratch, scratch.length, ArchiveEntry.DEFLATED, Deflater.DEFAULT_COMPRESSION, buffers);
+        buffers.release(compressed.data());
+        return compressed;
+    }
+}
@@ -0,0 +1,75 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class SingleFileOffsetBenchmark {
+    private static final int LOOKUPS = 4096;
+
+    @Param({"100", "1000", "10000"})
+    public int hunks;
+
+    private byte[] patch;
+    private SingleFileOffset offset;
+    private LineRemapper remapper;
+    private final int[] lines = new int[LOOKUPS];
+
+    @Setup
+    public void setup() {
+        patch = Fixtures.patch("Fixture", hunks);
+        offset = SingleFileOffset.fromPatch("Fixture", patch, patch.length);
+        remapper = LineRemapper.compose(LineTable.EMPTY, List.of(offset, offset));
+        var random = new Random(0);
+        for (int i = 0; i < LOOKUPS; i++) {
+            lines[i] = 1 + random.nextInt(Math.min(hunks * Fixtures.LINE_SPACING, LineRemapper.MAX_LINE));
+        }
+    }
+
+    @Benchmark
+    public SingleFileOffset fromPatch() {
+        return SingleFileOffset.fromPatch("Fixture", patch, patch.length);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int remapLineNumber() {
+        int sum = 0;
+        for (int line : lines) {
+            sum += offset.remapLineNumber(line);
+        }
+        return sum;
+    }
+
+    /**
+     * The same lookups through two stacked copies of the offset, composed into one table as they are for real runs.
+     */
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int composedMap() {
+        int sum = 0;
+        for (int line : lines) {
+            sum += remapper.map(line);
+        }
+        return sum;
+    }
+}
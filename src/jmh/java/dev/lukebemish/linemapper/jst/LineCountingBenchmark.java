@@ -0,0 +1,93 @@
+package dev.lukebemish.linemapper.jst;
+
+import com.intellij.openapi.util.TextRange;
+import net.neoforged.jst.api.Replacement;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class LineCountingBenchmark {
+    @Param({"1000", "10000"})
+    public int lines;
+
+    // One replacement every this many lines, each turning one line into two
+    @Param({"10"})
+    public int spacing;
+
+    private byte[] contents;
+    private List<Replacement> replacements;
+
+    @Setup
+    public void setup() {
+        var text = new StringBuilder();
+        replacements = new ArrayList<>();
+        for (int i = 0; i < lines; i++) {
+            int start = text.length();
+            text.append("        int value").append(i).append(" = ").append(i).append(';');
+            if (i % spacing == 0) {
+                replacements.add(new Replacement(new TextRange(start, text.length()), "        int value" + i + " =\n            " + i + ";"));
+            }
+            text.append('\n');
+        }
+        contents = text.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public List<LineMapperTransformer.LineMapping> lineMappings() {
+        return LineMapperTransformer.lineMappings(contents, replacements);
+    }
+
+    /**
+     * The line counting as it was before the file was indexed once, for comparison: decoding to a string, copying it
+     * to a {@code char[]}, walking every character and splitting each replacement's text.
+     */
+    @Benchmark
+    public List<LineMapperTransformer.LineMapping> previousLineMappings() {
+        char[] chars = new String(contents).toCharArray();
+        List<LineMapperTransformer.LineMapping> offsets = new ArrayList<>();
+        int offset = 0;
+        int line = 1;
+        for (var replacement : replacements) {
+            var start = replacement.range().getStartOffset();
+            var end = replacement.range().getEndOffset();
+            while (start > offset) {
+                if (chars[offset] == '\n') {
+                    line++;
+                }
+                offset++;
+            }
+            int originalLineBreakCount = 0;
+            while (end > offset) {
+                if (chars[offset] == '\n') {
+                    originalLineBreakCount++;
+                    line++;
+                }
+                offset++;
+            }
+            int newLineBreakCount = replacement.newText().split("\n").length - 1;
+            if (originalLineBreakCount != newLineBreakCount) {
+                offsets.add(new LineMapperTransformer.LineMapping(line, line + newLineBreakCount - originalLineBreakCount));
+            }
+        }
+        return offsets;
+    }
+}
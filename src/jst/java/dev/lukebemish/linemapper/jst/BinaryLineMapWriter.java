@@ -0,0 +1,86 @@
+package dev.lukebemish.linemapper.jst;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Writes line maps in the binary format read by the CLI: a header and an index of name and data offsets, a string table
+ * of source names, and the delta- and varint-encoded offset pairs of each source.
+ */
+final class BinaryLineMapWriter {
+    private static final byte[] MAGIC = {'L', 'M', 'A', 'P'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+    private static final int INDEX_ENTRY_SIZE = 8;
+
+    private BinaryLineMapWriter() {}
+
+    /**
+     * {@return the data section entry for a single source's offsets}
+     */
+    static byte[] encode(List<LineMapperTransformer.LineMapping> offsets) {
+        var data = new ByteArrayOutputStream(1 + offsets.size() * 4);
+        writeVarint(data, offsets.size());
+        int original = 0;
+        int shift = 0;
+        for (var offset : offsets) {
+            int offsetShift = offset.transformed() - offset.original();
+            writeVarint(data, zigzag(offset.original() - original));
+            writeVarint(data, zigzag(offsetShift - shift));
+            original = offset.original();
+            shift = offsetShift;
+        }
+        return data.toByteArray();
+    }
+
+    /**
+     * Writes a line map from chunks produced by {@link #encode(List)}.
+     */
+    static void write(OutputStream out, LineMapChunks chunks) throws IOException {
+        var names = new ByteArrayOutputStream();
+        int count = chunks.size();
+        int[] nameOffsets = new int[count];
+        int[] dataOffsets = new int[count];
+        int dataSize = 0;
+        int i = 0;
+        for (var source : chunks.sources()) {
+            nameOffsets[i] = names.size();
+            var name = source.getBytes(StandardCharsets.UTF_8);
+            writeVarint(names, name.length);
+            names.write(name);
+            dataOffsets[i] = dataSize;
+            dataSize += chunks.length(source);
+            i++;
+        }
+
+        int namesStart = HEADER_SIZE + count * INDEX_ENTRY_SIZE;
+        int dataStart = namesStart + names.size();
+        var header = ByteBuffer.allocate(namesStart).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(MAGIC).put((byte) VERSION).putInt(count);
+        for (i = 0; i < count; i++) {
+            header.putInt(namesStart + nameOffsets[i]).putInt(dataStart + dataOffsets[i]);
+        }
+        out.write(header.array());
+        names.writeTo(out);
+        for (var source : chunks.sources()) {
+            chunks.transferTo(source, out);
+        }
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
@@ -0,0 +1,112 @@
+package dev.lukebemish.linemapper.jst;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The encoded line mappings of each source file, kept sorted by source name as they are added from any thread. Once
+ * the chunks held in memory would exceed a limit, further chunks are appended to a temporary spill file next to the
+ * output instead.
+ */
+final class LineMapChunks implements Closeable {
+    private final NavigableMap<String, Chunk> chunks = new ConcurrentSkipListMap<>();
+    private final AtomicLong inMemory = new AtomicLong();
+    private final long memoryLimit;
+    private final Path spillDirectory;
+
+    private FileChannel spill;
+    private Path spillPath;
+    private long spillSize;
+
+    /**
+     * A chunk is either held in {@code bytes}, or spilled to {@code length} bytes at {@code offset} in the spill file.
+     */
+    private record Chunk(byte[] bytes, long offset, int length) {}
+
+    LineMapChunks(long memoryLimit, Path spillDirectory) {
+        this.memoryLimit = memoryLimit;
+        this.spillDirectory = spillDirectory;
+    }
+
+    void put(String source, byte[] bytes) throws IOException {
+        Chunk chunk;
+        if (inMemory.addAndGet(bytes.length) <= memoryLimit) {
+            chunk = new Chunk(bytes, 0, bytes.length);
+        } else {
+            inMemory.addAndGet(-bytes.length);
+            chunk = new Chunk(null, spill(bytes), bytes.length);
+        }
+        var previous = chunks.put(source, chunk);
+        if (previous != null && previous.bytes() != null) {
+            inMemory.addAndGet(-previous.length());
+        }
+    }
+
+    /**
+     * {@return the chunks' source names, in order}
+     */
+    Iterable<String> sources() {
+        return chunks.keySet();
+    }
+
+    int size() {
+        return chunks.size();
+    }
+
+    int length(String source) {
+        return chunks.get(source).length();
+    }
+
+    void transferTo(String source, OutputStream out) throws IOException {
+        var chunk = chunks.get(source);
+        if (chunk.bytes() != null) {
+            out.write(chunk.bytes());
+            return;
+        }
+        var buffer = ByteBuffer.allocate(chunk.length());
+        synchronized (this) {
+            while (buffer.hasRemaining()) {
+                if (spill.read(buffer, chunk.offset() + buffer.position()) < 0) {
+                    throw new IOException("Line map spill file " + spillPath + " was truncated");
+                }
+            }
+        }
+        out.write(buffer.array());
+    }
+
+    private synchronized long spill(byte[] bytes) throws IOException {
+        if (spill == null) {
+            spillPath = Files.createTempFile(spillDirectory, "line-map", ".spill");
+            spill = FileChannel.open(spillPath, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        }
+        long offset = spillSize;
+        var buffer = ByteBuffer.wrap(bytes);
+        while (buffer.hasRemaining()) {
+            spill.write(buffer, offset + buffer.position());
+        }
+        spillSize += bytes.length;
+        return offset;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        chunks.clear();
+        if (spill != null) {
+            try {
+                spill.close();
+            } finally {
+                Files.deleteIfExists(spillPath);
+                spill = null;
+            }
+        }
+    }
+}
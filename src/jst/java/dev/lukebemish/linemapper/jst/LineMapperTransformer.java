@@ -9,95 +9,192 @@
 import net.neoforged.jst.api.TransformContext;
 import picocli.CommandLine;
 
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
 
 public class LineMapperTransformer implements SourceTransformer {
+    private static final byte[] SOURCE_PREFIX = "source ".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ARROW = " -> ".getBytes(StandardCharsets.US_ASCII);
+
     private Logger logger;
 
     @CommandLine.Option(names = "--line-map-out", description = "The path to the file to write line mappings to")
     public Path lineMapOut;
 
+    @CommandLine.Option(names = "--line-map-binary", description = "Write line mappings in the compact binary format instead of text")
+    public boolean lineMapBinary;
+
+    @CommandLine.Option(names = "--line-map-memory-limit", description = "How many bytes of encoded line mappings to hold in memory before spilling further ones to a temporary file")
+    public long lineMapMemoryLimit = 64L * 1024 * 1024;
+
     @Override
     public void visitFile(PsiFile psiFile, Replacements replacements) {
         // no-op
     }
 
-    private final Map<String, List<LineMapping>> mappings = new ConcurrentHashMap<>();
+    private LineMapChunks chunks;
 
-    private record LineMapping(int original, int transformed) {}
+    record LineMapping(int original, int transformed) {}
 
     @Override
     public void beforeRun(TransformContext context) {
         this.logger = context.logger();
+        this.chunks = new LineMapChunks(lineMapMemoryLimit, lineMapOut.toAbsolutePath().getParent());
     }
 
     @Override
     public boolean beforeReplacement(FileEntry fileEntry, List<Replacement> replacements) {
-        List<LineMapping> offsets = new ArrayList<>();
         var name = fileEntry.relativePath();
         if (name.endsWith(".java")) {
             name = name.substring(0, name.length() - 5);
         } else {
             return true;
         }
-        String stringValue;
+        if (replacements.isEmpty()) {
+            return true;
+        }
+        byte[] contents;
         try (var is = fileEntry.openInputStream()) {
-            stringValue = new String(is.readAllBytes());
+            contents = is.readAllBytes();
         } catch (Exception e) {
             logger.error("Failed to read file `" + name + "`: "+ e.getMessage());
             return false;
         }
-        char[] chars = stringValue.toCharArray();
+        var offsets = lineMappings(contents, replacements);
+        if (!offsets.isEmpty()) {
+            try {
+                chunks.put(name, lineMapBinary ? BinaryLineMapWriter.encode(offsets) : encodeText(name, offsets));
+            } catch (IOException e) {
+                logger.error("Failed to store line mappings for `" + name + "`: " + e.getMessage());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Finds the lines at which the line count of a file changes when the given replacements are applied to it.
+     * @param contents the file, encoded as UTF-8
+     */
+    static List<LineMapping> lineMappings(byte[] contents, List<Replacement> replacements) {
+        var lines = LineIndex.of(contents);
+        List<LineMapping> offsets = new ArrayList<>();
         int offset = 0;
-        int line = 1;
+        int breaks = 0;
         for (var replacement : replacements) {
-            var start = replacement.range().getStartOffset();
-            var end = replacement.range().getEndOffset();
-            while (start > offset) {
-                if (chars[offset] == '\n') {
-                    line++;
-                }
-                offset++;
-            }
-            int originalLineBreakCount = 0;
-            while (end > offset) {
-                if (chars[offset] == '\n') {
-                    originalLineBreakCount++;
-                    line++;
-                }
-                offset++;
-            }
-            int newLineBreakCount = replacement.newText().split("\n").length - 1;
+            // Replacements are expected in order; one that starts before the end of the last is only counted from there
+            offset = Math.max(offset, replacement.range().getStartOffset());
+            breaks = lines.advance(breaks, offset);
+            int end = Math.max(offset, replacement.range().getEndOffset());
+            int breaksBeforeEnd = lines.advance(breaks, end);
+            int originalLineBreakCount = breaksBeforeEnd - breaks;
+            offset = end;
+            breaks = breaksBeforeEnd;
+            int line = 1 + breaks;
+            int newLineBreakCount = countLineBreaks(replacement.newText());
             if (originalLineBreakCount != newLineBreakCount) {
                 offsets.add(new LineMapping(line, line + newLineBreakCount - originalLineBreakCount));
             }
         }
-        if (!offsets.isEmpty()) {
-            mappings.put(name, offsets);
+        return offsets;
+    }
+
+    private static int countLineBreaks(String text) {
+        int count = 0;
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) == '\n') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * The offsets of every line break in a file, in UTF-16 code units to match the offsets of replacements.
+     */
+    private static final class LineIndex {
+        private int[] breaks = new int[64];
+        private int count;
+
+        static LineIndex of(byte[] contents) {
+            // Decoding ASCII, and searching the resulting Latin-1 string, are both vectorized by the JVM
+            var text = new String(contents, StandardCharsets.UTF_8);
+            var index = new LineIndex();
+            for (int i = text.indexOf('\n'); i != -1; i = text.indexOf('\n', i + 1)) {
+                index.add(i);
+            }
+            return index;
+        }
+
+        private void add(int offset) {
+            if (count == breaks.length) {
+                breaks = Arrays.copyOf(breaks, count * 2);
+            }
+            breaks[count++] = offset;
+        }
+
+        /**
+         * {@return how many line breaks come before {@code offset}, given that at least {@code from} do}
+         * Offsets only ever increase as a file is walked, so this scans forward rather than searching.
+         */
+        int advance(int from, int offset) {
+            int index = from;
+            while (index < count && breaks[index] < offset) {
+                index++;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Encodes a source's mappings as a block of the text format: a {@code source} line, then one line per offset.
+     */
+    private static byte[] encodeText(String name, List<LineMapping> offsets) {
+        var out = new ByteArrayOutputStream(name.length() + 8 + offsets.size() * 16);
+        out.writeBytes(SOURCE_PREFIX);
+        out.writeBytes(name.getBytes(StandardCharsets.UTF_8));
+        out.write('\n');
+        for (var offset : offsets) {
+            writeInt(out, offset.original());
+            out.writeBytes(ARROW);
+            writeInt(out, offset.transformed());
+            out.write('\n');
+        }
+        return out.toByteArray();
+    }
+
+    private static void writeInt(ByteArrayOutputStream out, int value) {
+        if (value < 0) {
+            out.write('-');
+        }
+        long remaining = Math.abs((long) value);
+        long divisor = 1;
+        while (divisor * 10 <= remaining) {
+            divisor *= 10;
+        }
+        for (; divisor > 0; divisor /= 10) {
+            out.write('0' + (int) (remaining / divisor % 10));
         }
-        return true;
     }
 
     @Override
     public boolean afterRun(TransformContext context) {
-        try (var writer = Files.newBufferedWriter(lineMapOut, StandardCharsets.UTF_8)) {
-            var entries = mappings.entrySet().stream().sorted(Map.Entry.comparingByKey()).toList();
-            for (var entry : entries) {
-                var name = entry.getKey();
-                var offsets = entry.getValue();
-                writer.write("source "+name+"\n");
-                for (var offset : offsets) {
-                    writer.write(offset.original() + " -> "+offset.transformed()+"\n");
+        try (var chunks = this.chunks; var out = new BufferedOutputStream(Files.newOutputStream(lineMapOut), 1 << 16)) {
+            if (lineMapBinary) {
+                BinaryLineMapWriter.write(out, chunks);
+            } else {
+                for (var source : chunks.sources()) {
+                    chunks.transferTo(source, out);
                 }
+                out.write('\n');
             }
-            writer.write("\n");
         } catch (IOException e) {
             logger.error("Failed to write line mappings: " + e.getMessage());
             return false;
@@ -0,0 +1,75 @@
+package dev.lukebemish.linemapper.cli;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+record ArchiveEntry(
+    byte[] rawName,
+    int versionMadeBy,
+    int flags,
+    int method,
+    int dosTime,
+    long crc,
+    long compressedSize,
+    long size,
+    long localHeaderOffset,
+    int internalAttributes,
+    int externalAttributes,
+    byte[] extra,
+    byte[] comment
+) {
+    static final int STORED = 0;
+    static final int DEFLATED = 8;
+    static final int ZIP64_EXTRA = 0x0001;
+
+    String name() {
+        return new String(rawName, StandardCharsets.UTF_8);
+    }
+
+    boolean isClass() {
+        return endsWith(rawName, ".class");
+    }
+
+    private static boolean endsWith(byte[] bytes, String suffix) {
+        int offset = bytes.length - suffix.length();
+        if (offset < 0) {
+            return false;
+        }
+        for (int i = 0; i < suffix.length(); i++) {
+            if (bytes[offset + i] != suffix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Removes any ZIP64 extended information field; the writer regenerates it when sizes or offsets require it.
+     */
+    static byte[] stripZip64(byte[] extra) {
+        var buffer = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+        var out = ByteBuffer.allocate(extra.length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.remaining() >= 4) {
+            int start = buffer.position();
+            int id = Short.toUnsignedInt(buffer.getShort());
+            int length = Short.toUnsignedInt(buffer.getShort());
+            if (length > buffer.remaining()) {
+                // Malformed trailing data; keep it as is rather than guessing
+                buffer.position(start);
+                break;
+            }
+            if (id != ZIP64_EXTRA) {
+                out.put(extra, start, 4 + length);
+            }
+            buffer.position(buffer.position() + length);
+        }
+        out.put(extra, buffer.position(), buffer.remaining());
+        if (out.position() == extra.length) {
+            return extra;
+        }
+        var stripped = new byte[out.position()];
+        out.flip().get(stripped);
+        return stripped;
+    }
+}
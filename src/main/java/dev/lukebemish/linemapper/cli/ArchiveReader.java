@@ -0,0 +1,264 @@
+package dev.lukebemish.linemapper.cli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Reads a zip archive through its central directory, giving access to the still-compressed data of each entry. The
+ * archive is memory-mapped when it fits in a single mapping, so that entries can be read and inflated concurrently
+ * without copying them through the heap.
+ * <p>
+ * The mapping is not released on {@link #close()}, but only once it is garbage collected. Until then it keeps using
+ * address space, and on Windows it keeps the file from being deleted or replaced, even in a daemon that has long since
+ * finished with it. It is deliberately not unmapped explicitly: after a failed run, entries that were already being
+ * remapped are cancelled without being interrupted, and may still be reading from the mapping after the archive is
+ * closed, which would crash the JVM rather than fail.
+ */
+final class ArchiveReader implements Closeable {
+    static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+    static final int END_SIGNATURE = 0x06054b50;
+    static final int ZIP64_END_SIGNATURE = 0x06064b50;
+    static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+    static final int LOCAL_HEADER_SIZE = 30;
+    static final int CENTRAL_HEADER_SIZE = 46;
+    static final int END_SIZE = 22;
+    static final int ZIP64_END_SIZE = 56;
+    static final int ZIP64_LOCATOR_SIZE = 20;
+    static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+    private static final ThreadLocal<Inflater> INFLATER = ThreadLocal.withInitial(() -> new Inflater(true));
+    private static final ThreadLocal<byte[]> BUFFER = ThreadLocal.withInitial(() -> new byte[8192]);
+
+    private final FileChannel channel;
+    private final ByteBuffer mapped;
+    private final List<ArchiveEntry> entries;
+
+    record LocalHeader(byte[] extra, ByteBuffer data) {}
+
+    private ArchiveReader(FileChannel channel, ByteBuffer mapped) throws IOException {
+        this.channel = channel;
+        this.mapped = mapped;
+        this.entries = readCentralDirectory();
+    }
+
+    static ArchiveReader open(Path path) throws IOException {
+        var channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            ByteBuffer mapped = null;
+            if (size <= Integer.MAX_VALUE) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size).order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return new ArchiveReader(channel, mapped);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    List<ArchiveEntry> entries() {
+        return entries;
+    }
+
+    LocalHeader localHeader(ArchiveEntry entry) throws IOException {
+        var header = read(entry.localHeaderOffset(), LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new ZipException("Invalid local header for entry `" + entry.name() + "`");
+        }
+        int nameLength = Short.toUnsignedInt(header.getShort(26));
+        int extraLength = Short.toUnsignedInt(header.getShort(28));
+        long extraStart = entry.localHeaderOffset() + LOCAL_HEADER_SIZE + nameLength;
+        var extra = new byte[extraLength];
+        read(extraStart, extraLength).get(extra);
+        if (entry.compressedSize() > Integer.MAX_VALUE) {
+            throw new ZipException("Entry `" + entry.name() + "` is too large");
+        }
+        var data = read(extraStart + extraLength, (int) entry.compressedSize());
+        return new LocalHeader(ArchiveEntry.stripZip64(extra), data);
+    }
+
+    /**
+     * Inflates an entry into a buffer owned by the calling thread. Only the first {@link ArchiveEntry#size()} bytes of
+     * the returned array are meaningful, and the array is reused by the next call on the same thread.
+     */
+    byte[] inflate(ArchiveEntry entry, ByteBuffer data) throws IOException {
+        if (entry.size() > Integer.MAX_VALUE - 8) {
+            throw new ZipException("Entry `" + entry.name() + "` is too large");
+        }
+        int size = (int) entry.size();
+        byte[] contents = BUFFER.get();
+        if (contents.length < size) {
+            contents = new byte[Math.max(size, (int) Math.min(Integer.MAX_VALUE - 8, contents.length * 2L))];
+            BUFFER.set(contents);
+        }
+        switch (entry.method()) {
+            case ArchiveEntry.STORED -> {
+                if (data.remaining() != size) {
+                    throw new ZipException("Stored entry `" + entry.name() + "` has mismatched sizes");
+                }
+                data.get(data.position(), contents, 0, size);
+            }
+            case ArchiveEntry.DEFLATED -> {
+                var inflater = INFLATER.get();
+                inflater.reset();
+                try {
+                    inflater.setInput(data.duplicate());
+                    int read = 0;
+                    while (read < size) {
+                        int count = inflater.inflate(contents, read, size - read);
+                        if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        read += count;
+                    }
+                    if (read != size) {
+                        throw new ZipException("Entry `" + entry.name() + "` is shorter than its declared size");
+                    }
+                } catch (DataFormatException e) {
+                    throw new ZipException("Invalid compressed data for entry `" + entry.name() + "`: " + e.getMessage());
+                }
+            }
+            default -> throw new ZipException("Unsupported compression method " + entry.method() + " for entry `" + entry.name() + "`");
+        }
+        var crc = new CRC32();
+        crc.update(contents, 0, size);
+        if (crc.getValue() != entry.crc()) {
+            throw new ZipException("CRC mismatch for entry `" + entry.name() + "`");
+        }
+        return contents;
+    }
+
+    /**
+     * Closes the underlying file. Any mapping of it stays valid until it is garbage collected.
+     */
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private List<ArchiveEntry> readCentralDirectory() throws IOException {
+        long size = channel.size();
+        int tailLength = (int) Math.min(size, END_SIZE + 0xFFFF);
+        var tail = read(size - tailLength, tailLength);
+        int end = -1;
+        for (int i = tailLength - END_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == END_SIGNATURE) {
+                end = i;
+                break;
+            }
+        }
+        if (end == -1) {
+            throw new ZipException("No end of central directory record found");
+        }
+        long entryCount = Short.toUnsignedLong(tail.getShort(end + 10));
+        long directorySize = Integer.toUnsignedLong(tail.getInt(end + 12));
+        long directoryOffset = Integer.toUnsignedLong(tail.getInt(end + 16));
+        long endPosition = size - tailLength + end;
+        if (endPosition >= ZIP64_LOCATOR_SIZE) {
+            var locator = read(endPosition - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+            if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+                var zip64End = read(locator.getLong(8), ZIP64_END_SIZE);
+                if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                    throw new ZipException("Invalid zip64 end of central directory record");
+                }
+                entryCount = zip64End.getLong(32);
+                directorySize = zip64End.getLong(40);
+                directoryOffset = zip64End.getLong(48);
+            }
+        }
+        if (directorySize > Integer.MAX_VALUE) {
+            throw new ZipException("Central directory is too large");
+        }
+        return parseCentralDirectory(read(directoryOffset, (int) directorySize), entryCount);
+    }
+
+    private static List<ArchiveEntry> parseCentralDirectory(ByteBuffer directory, long entryCount) throws ZipException {
+        List<ArchiveEntry> entries = new ArrayList<>((int) Math.min(entryCount, 1 << 16));
+        int position = 0;
+        for (long i = 0; i < entryCount; i++) {
+            if (directory.limit() - position < CENTRAL_HEADER_SIZE || directory.getInt(position) != CENTRAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid central directory header at entry " + i);
+            }
+            int nameLength = Short.toUnsignedInt(directory.getShort(position + 28));
+            int extraLength = Short.toUnsignedInt(directory.getShort(position + 30));
+            int commentLength = Short.toUnsignedInt(directory.getShort(position + 32));
+            var name = new byte[nameLength];
+            var extra = new byte[extraLength];
+            var comment = new byte[commentLength];
+            directory.get(position + CENTRAL_HEADER_SIZE, name);
+            directory.get(position + CENTRAL_HEADER_SIZE + nameLength, extra);
+            directory.get(position + CENTRAL_HEADER_SIZE + nameLength + extraLength, comment);
+
+            long compressedSize = Integer.toUnsignedLong(directory.getInt(position + 20));
+            long uncompressedSize = Integer.toUnsignedLong(directory.getInt(position + 24));
+            long localHeaderOffset = Integer.toUnsignedLong(directory.getInt(position + 42));
+            if (compressedSize == ZIP64_MAGIC || uncompressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+                var fields = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+                while (fields.remaining() >= 4) {
+                    int id = Short.toUnsignedInt(fields.getShort());
+                    int length = Short.toUnsignedInt(fields.getShort());
+                    if (id == ArchiveEntry.ZIP64_EXTRA) {
+                        if (uncompressedSize == ZIP64_MAGIC) {
+                            uncompressedSize = fields.getLong();
+                        }
+                        if (compressedSize == ZIP64_MAGIC) {
+                            compressedSize = fields.getLong();
+                        }
+                        if (localHeaderOffset == ZIP64_MAGIC) {
+                            localHeaderOffset = fields.getLong();
+                        }
+                        break;
+                    }
+                    fields.position(fields.position() + length);
+                }
+            }
+
+            entries.add(new ArchiveEntry(
+                name,
+                Short.toUnsignedInt(directory.getShort(position + 4)),
+                Short.toUnsignedInt(directory.getShort(position + 8)),
+                Short.toUnsignedInt(directory.getShort(position + 10)),
+                directory.getInt(position + 12),
+                Integer.toUnsignedLong(directory.getInt(position + 16)),
+                compressedSize,
+                uncompressedSize,
+                localHeaderOffset,
+                Short.toUnsignedInt(directory.getShort(position + 36)),
+                directory.getInt(position + 38),
+                ArchiveEntry.stripZip64(extra),
+                comment
+            ));
+            position += CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+        }
+        return entries;
+    }
+
+    private ByteBuffer read(long position, int length) throws IOException {
+        if (mapped != null) {
+            if (position < 0 || position + length > mapped.limit()) {
+                throw new ZipException("Unexpected end of archive");
+            }
+            return mapped.slice((int) position, length).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        var buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) {
+                throw new ZipException("Unexpected end of archive");
+            }
+        }
+        return buffer.flip();
+    }
+}
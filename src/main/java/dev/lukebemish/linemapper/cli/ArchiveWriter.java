@@ -0,0 +1,254 @@
+package dev.lukebemish.linemapper.cli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import static dev.lukebemish.linemapper.cli.ArchiveReader.CENTRAL_HEADER_SIGNATURE;
+import static dev.lukebemish.linemapper.cli.ArchiveReader.CENTRAL_HEADER_SIZE;
+import static dev.lukebemish.linemapper.cli.ArchiveReader.END_SIGNATURE;
+import static dev.lukebemish.linemapper.cli.ArchiveReader.END_SIZE;
+import static dev.lukebemish.linemapper.cli.ArchiveReader.LOCAL_HEADER_SIGNATURE;
+import static dev.lukebemish.linemapper.cli.ArchiveReader.LOCAL_HEADER_SIZE;
+import static dev.lukebemish.linemapper.cli.ArchiveReader.ZIP64_END_SIGNATURE;
+import static dev.lukebemish.linemapper.cli.ArchiveReader.ZIP64_END_SIZE;
+import static dev.lukebemish.linemapper.cli.ArchiveReader.ZIP64_LOCATOR_SIGNATURE;
+import static dev.lukebemish.linemapper.cli.ArchiveReader.ZIP64_LOCATOR_SIZE;
+import static dev.lukebemish.linemapper.cli.ArchiveReader.ZIP64_MAGIC;
+
+/**
+ * Writes a zip archive sequentially, either copying already-compressed entry data verbatim or writing contents that
+ * were compressed ahead of time with {@link #compress(byte[], int, int, int, BufferPool)}.
+ */
+final class ArchiveWriter implements Closeable {
+    private static final int VERSION_DEFAULT = 20;
+    private static final int VERSION_ZIP64 = 45;
+    private static final int FLAG_DATA_DESCRIPTOR = 0x0008;
+    private static final int FLAG_UTF8 = 0x0800;
+    private static final int BUFFER_SIZE = 1 << 18;
+
+    private static final ThreadLocal<Deflater> DEFLATER = ThreadLocal.withInitial(() -> new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+    private final List<Written> written = new ArrayList<>();
+    private long position;
+
+    record Compressed(int method, long crc, long size, ByteBuffer data) {}
+
+    private record Written(ArchiveEntry entry, int flags, int method, long crc, long compressedSize, long size, long offset) {}
+
+    private ArchiveWriter(FileChannel channel) {
+        this.channel = channel;
+    }
+
+    static ArchiveWriter create(Path path) throws IOException {
+        return new ArchiveWriter(FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING));
+    }
+
+    /**
+     * Copies an entry's compressed data from another archive without recompressing it.
+     */
+    void copy(ArchiveEntry entry, ArchiveReader.LocalHeader local) throws IOException {
+        writeEntry(entry, local.extra(), entry.flags() & ~FLAG_DATA_DESCRIPTOR, entry.method(), entry.crc(), entry.compressedSize(), entry.size(), local.data());
+    }
+
+    /**
+     * Writes new contents for an entry, keeping its metadata.
+     */
+    void write(ArchiveEntry entry, ArchiveReader.LocalHeader local, Compressed compressed) throws IOException {
+        var data = compressed.data();
+        writeEntry(entry, local.extra(), entry.flags() & FLAG_UTF8, compressed.method(), compressed.crc(), data.remaining(), compressed.size(), data);
+    }
+
+    /**
+     * Compresses the first {@code length} bytes of {@code contents} with the given method. This may be called from any
+     * thread; each thread reuses its own {@link Deflater}. The compressed data is written to an array from
+     * {@code buffers}, which may be released back to it once the data has been written.
+     */
+    static Compressed compress(byte[] contents, int length, int method, int level, BufferPool buffers) {
+        var crc = new CRC32();
+        crc.update(contents, 0, length);
+        if (method == ArchiveEntry.STORED) {
+            var stored = buffers.acquire(length);
+            System.arraycopy(contents, 0, stored, 0, length);
+            return new Compressed(ArchiveEntry.STORED, crc.getValue(), length, ByteBuffer.wrap(stored, 0, length));
+        }
+        var deflater = DEFLATER.get();
+        deflater.reset();
+        deflater.setLevel(level);
+        deflater.setInput(contents, 0, length);
+        deflater.finish();
+        byte[] deflated = buffers.acquire(deflateBound(length));
+        int deflatedLength = 0;
+        while (!deflater.finished()) {
+            if (deflatedLength == deflated.length) {
+                deflated = Arrays.copyOf(deflated, deflated.length * 2);
+            }
+            deflatedLength += deflater.deflate(deflated, deflatedLength, deflated.length - deflatedLength);
+        }
+        return new Compressed(ArchiveEntry.DEFLATED, crc.getValue(), length, ByteBuffer.wrap(deflated, 0, deflatedLength));
+    }
+
+    /**
+     * {@return an upper bound on the deflated size of {@code length} bytes, as computed by zlib's {@code compressBound}}
+     */
+    private static int deflateBound(int length) {
+        return (int) Math.min(Integer.MAX_VALUE - 8, length + (length >>> 12) + (length >>> 14) + (length >>> 25) + 13L);
+    }
+
+    private void writeEntry(ArchiveEntry entry, byte[] extra, int flags, int method, long crc, long compressedSize, long size, ByteBuffer data) throws IOException {
+        boolean zip64 = compressedSize >= ZIP64_MAGIC || size >= ZIP64_MAGIC;
+        byte[] name = entry.rawName();
+        int extraLength = extra.length + (zip64 ? 20 : 0);
+        ensure(LOCAL_HEADER_SIZE + name.length + extraLength);
+        long offset = position;
+        buffer.putInt(LOCAL_HEADER_SIGNATURE);
+        buffer.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+        buffer.putShort((short) flags);
+        buffer.putShort((short) method);
+        buffer.putInt(entry.dosTime());
+        buffer.putInt((int) crc);
+        buffer.putInt((int) (zip64 ? ZIP64_MAGIC : compressedSize));
+        buffer.putInt((int) (zip64 ? ZIP64_MAGIC : size));
+        buffer.putShort((short) name.length);
+        buffer.putShort((short) extraLength);
+        buffer.put(name);
+        if (zip64) {
+            buffer.putShort((short) ArchiveEntry.ZIP64_EXTRA);
+            buffer.putShort((short) 16);
+            buffer.putLong(size);
+            buffer.putLong(compressedSize);
+        }
+        buffer.put(extra);
+        position += LOCAL_HEADER_SIZE + name.length + extraLength;
+        writeData(data.duplicate());
+        written.add(new Written(entry, flags, method, crc, compressedSize, size, offset));
+    }
+
+    private void writeData(ByteBuffer data) throws IOException {
+        position += data.remaining();
+        if (data.remaining() <= buffer.remaining()) {
+            buffer.put(data);
+            return;
+        }
+        flush();
+        while (data.hasRemaining()) {
+            channel.write(data);
+        }
+    }
+
+    private void ensure(int length) throws IOException {
+        if (buffer.remaining() < length) {
+            flush();
+        }
+    }
+
+    private void flush() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            long directoryOffset = position;
+            for (var entry : written) {
+                writeCentralHeader(entry);
+            }
+            long directorySize = position - directoryOffset;
+            boolean zip64 = written.size() >= 0xFFFF || directoryOffset >= ZIP64_MAGIC || directorySize >= ZIP64_MAGIC;
+            if (zip64) {
+                long zip64EndOffset = position;
+                ensure(ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE);
+                buffer.putInt(ZIP64_END_SIGNATURE);
+                buffer.putLong(ZIP64_END_SIZE - 12);
+                buffer.putShort((short) VERSION_ZIP64);
+                buffer.putShort((short) VERSION_ZIP64);
+                buffer.putInt(0);
+                buffer.putInt(0);
+                buffer.putLong(written.size());
+                buffer.putLong(written.size());
+                buffer.putLong(directorySize);
+                buffer.putLong(directoryOffset);
+                buffer.putInt(ZIP64_LOCATOR_SIGNATURE);
+                buffer.putInt(0);
+                buffer.putLong(zip64EndOffset);
+                buffer.putInt(1);
+                position += ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE;
+            }
+            ensure(END_SIZE);
+            buffer.putInt(END_SIGNATURE);
+            buffer.putShort((short) 0);
+            buffer.putShort((short) 0);
+            buffer.putShort((short) (zip64 ? 0xFFFF : written.size()));
+            buffer.putShort((short) (zip64 ? 0xFFFF : written.size()));
+            buffer.putInt((int) (zip64 ? ZIP64_MAGIC : directorySize));
+            buffer.putInt((int) (zip64 ? ZIP64_MAGIC : directoryOffset));
+            buffer.putShort((short) 0);
+            position += END_SIZE;
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void writeCentralHeader(Written written) throws IOException {
+        var entry = written.entry();
+        boolean zip64Size = written.size() >= ZIP64_MAGIC;
+        boolean zip64CompressedSize = written.compressedSize() >= ZIP64_MAGIC;
+        boolean zip64Offset = written.offset() >= ZIP64_MAGIC;
+        int zip64Length = (zip64Size ? 8 : 0) + (zip64CompressedSize ? 8 : 0) + (zip64Offset ? 8 : 0);
+        boolean zip64 = zip64Length != 0;
+        byte[] name = entry.rawName();
+        byte[] extra = entry.extra();
+        byte[] comment = entry.comment();
+        int extraLength = extra.length + (zip64 ? 4 + zip64Length : 0);
+        ensure(CENTRAL_HEADER_SIZE + name.length + extraLength + comment.length);
+        buffer.putInt(CENTRAL_HEADER_SIGNATURE);
+        buffer.putShort((short) entry.versionMadeBy());
+        buffer.putShort((short) (zip64 ? VERSION_ZIP64 : VERSION_DEFAULT));
+        buffer.putShort((short) written.flags());
+        buffer.putShort((short) written.method());
+        buffer.putInt(entry.dosTime());
+        buffer.putInt((int) written.crc());
+        buffer.putInt((int) (zip64CompressedSize ? ZIP64_MAGIC : written.compressedSize()));
+        buffer.putInt((int) (zip64Size ? ZIP64_MAGIC : written.size()));
+        buffer.putShort((short) name.length);
+        buffer.putShort((short) extraLength);
+        buffer.putShort((short) comment.length);
+        buffer.putShort((short) 0);
+        buffer.putShort((short) entry.internalAttributes());
+        buffer.putInt(entry.externalAttributes());
+        buffer.putInt((int) (zip64Offset ? ZIP64_MAGIC : written.offset()));
+        buffer.put(name);
+        if (zip64) {
+            buffer.putShort((short) ArchiveEntry.ZIP64_EXTRA);
+            buffer.putShort((short) zip64Length);
+            if (zip64Size) {
+                buffer.putLong(written.size());
+            }
+            if (zip64CompressedSize) {
+                buffer.putLong(written.compressedSize());
+            }
+            if (zip64Offset) {
+                buffer.putLong(written.offset());
+            }
+        }
+        buffer.put(extra);
+        buffer.put(comment);
+        position += CENTRAL_HEADER_SIZE + name.length + extraLength + comment.length;
+    }
+}
@@ -0,0 +1,150 @@
+package dev.lukebemish.linemapper.cli;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A line map in the binary format written by the JST plugin. All fixed-width values are little-endian:
+ * <ul>
+ *     <li>the magic bytes {@code LMAP} and a version byte, currently {@code 1}</li>
+ *     <li>a {@code u4} count of sources</li>
+ *     <li>an index with, for each source in name order, the {@code u4} file offsets of its name and of its data</li>
+ *     <li>a string table of names, each a varint length followed by that many UTF-8 bytes</li>
+ *     <li>the data of each source: a varint count of pairs, then for each pair the zigzag varint difference of its
+ *     initial line from the previous pair's, and of its line shift from the previous pair's</li>
+ * </ul>
+ * The index allows looking up a single source by binary search without decoding anything else.
+ */
+final class BinaryLineMap {
+    private static final byte[] MAGIC = {'L', 'M', 'A', 'P'};
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 1 + 4;
+    private static final int INDEX_ENTRY_SIZE = 8;
+
+    private final Path path;
+    private final ByteBuffer buffer;
+    private final int count;
+
+    private BinaryLineMap(Path path, ByteBuffer buffer, int count) {
+        this.path = path;
+        this.buffer = buffer;
+        this.count = count;
+    }
+
+    /**
+     * {@return whether a file starts with the magic bytes of the binary format}
+     * Anything else is read as the text format.
+     */
+    static boolean isBinary(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(MAGIC.length);
+            while (header.hasRemaining() && channel.read(header) >= 0) {
+                // keep reading
+            }
+            return !header.hasRemaining() && header.flip().equals(ByteBuffer.wrap(MAGIC));
+        }
+    }
+
+    static BinaryLineMap open(Path path) throws IOException {
+        ByteBuffer buffer;
+        try (var channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("Line map " + path + " is too large");
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (buffer.capacity() < HEADER_SIZE || !buffer.slice(0, MAGIC.length).equals(ByteBuffer.wrap(MAGIC))) {
+            throw new IOException("Line map " + path + " is not in the binary format");
+        }
+        int version = buffer.get(MAGIC.length) & 0xFF;
+        if (version != VERSION) {
+            throw new IOException("Unsupported binary line map version " + version + " in " + path);
+        }
+        int count = buffer.getInt(MAGIC.length + 1);
+        if (count < 0 || (long) HEADER_SIZE + (long) count * INDEX_ENTRY_SIZE > buffer.capacity()) {
+            throw new IOException("Truncated binary line map " + path);
+        }
+        return new BinaryLineMap(path, buffer, count);
+    }
+
+    int size() {
+        return count;
+    }
+
+    String source(int index) {
+        int[] cursor = {offset(index, 0)};
+        int length = readVarint(cursor);
+        check(cursor[0], length);
+        var bytes = new byte[length];
+        buffer.get(cursor[0], bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * {@return the index of a source, or {@code -1} if this map has no offsets for it}
+     */
+    int find(String source) {
+        int low = 0;
+        int high = count - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int comparison = source(mid).compareTo(source);
+            if (comparison < 0) {
+                low = mid + 1;
+            } else if (comparison > 0) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    SingleFileOffset offsets(int index) {
+        int[] cursor = {offset(index, 4)};
+        int pairs = readVarint(cursor);
+        var offsets = new LineTable.Builder(pairs);
+        int original = 0;
+        int shift = 0;
+        for (int i = 0; i < pairs; i++) {
+            original += zigzag(readVarint(cursor));
+            shift += zigzag(readVarint(cursor));
+            offsets.add(original, original + shift);
+        }
+        return new SingleFileOffset(offsets);
+    }
+
+    private int offset(int index, int field) {
+        int offset = buffer.getInt(HEADER_SIZE + index * INDEX_ENTRY_SIZE + field);
+        check(offset, 1);
+        return offset;
+    }
+
+    private int readVarint(int[] cursor) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            check(cursor[0], 1);
+            int b = buffer.get(cursor[0]++);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint at offset " + (cursor[0] - 1) + " in line map " + path);
+    }
+
+    private static int zigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private void check(int offset, int length) {
+        if (offset < 0 || length < 0 || (long) offset + length > buffer.capacity()) {
+            throw new IllegalArgumentException("Truncated binary line map " + path + " at offset " + offset);
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package dev.lukebemish.linemapper.cli;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Byte arrays that are filled on the worker pool and handed to a writer, which gives them back once their contents are
+ * written. At most a fixed number of free arrays are kept; sizes are rounded up to a power of two so that an array can
+ * be reused for most entries of a similar size.
+ */
+final class BufferPool {
+    private static final int MIN_SIZE = 1 << 13;
+    private static final int MAX_SIZE = Integer.MAX_VALUE - 8;
+
+    private final BlockingQueue<byte[]> free;
+
+    BufferPool(int capacity) {
+        this.free = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    /**
+     * {@return an array of at least {@code size} bytes, with arbitrary contents}
+     */
+    byte[] acquire(int size) {
+        var buffer = free.poll();
+        if (buffer != null && buffer.length >= size) {
+            return buffer;
+        }
+        // A free array that is too small is dropped, so that the pool grows towards the sizes actually needed
+        int rounded = size <= MIN_SIZE ? MIN_SIZE : Integer.highestOneBit(size - 1) << 1;
+        return new byte[rounded <= 0 ? MAX_SIZE : rounded];
+    }
+
+    /**
+     * Returns the array backing {@code data} to the pool, if it has one. Only data obtained from this pool may be
+     * passed here; buffers over memory-mapped files are ignored.
+     */
+    void release(ByteBuffer data) {
+        if (data.hasArray()) {
+            free.offer(data.array());
+        }
+    }
+}
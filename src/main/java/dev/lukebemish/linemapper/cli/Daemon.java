@@ -0,0 +1,278 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import jdk.net.ExtendedSocketOptions;
+import picocli.CommandLine;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves remapping requests from a long-running process, so that the JVM, its JIT-compiled code and loaded mapping sets
+ * are reused between them. Mapping sets are kept for the most recently used combinations of inputs, and reloaded once
+ * any of their files changes.
+ * <p>
+ * The protocol is line-based UTF-8. A request is the client's working directory, then the command line arguments it was
+ * given, one per line, then an empty line. The response is a single line, either {@code ok} or {@code error} followed
+ * by a message. Requests on a connection, or on standard input, are served one at a time.
+ */
+final class Daemon {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Daemon.class);
+    private static final int MAX_MAPPING_SETS = 4;
+    private static final long SHUTDOWN_TIMEOUT_MILLIS = 10_000;
+    private static final int S_IFMT = 0170000;
+    private static final int S_IFSOCK = 0140000;
+
+    private final LineMapper mapper;
+    private final Map<Key, MappingSet> mappingSets = new LinkedHashMap<>(16, 0.75f, true);
+
+    private record Key(List<Path> vineflowerPaths, List<Path> patchPaths, List<Path> lineMapPaths, boolean lazy) {}
+
+    Daemon(LineMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * Accepts connections on a Unix domain socket until the process is stopped. On shutdown the request in progress, if
+     * any, is interrupted, and the socket and loaded mapping sets are cleaned up before the process exits.
+     * <p>
+     * Anything already at {@code socket} is only replaced if it is a socket that nothing is listening on. The socket is
+     * made readable and writable by its owner alone, and where the platform reports who is connecting, connections from
+     * any other user are refused; where it supports neither, the socket should be put in a directory only its owner can
+     * enter.
+     */
+    void serve(Path socket) throws IOException {
+        removeStale(socket);
+        var serving = Thread.currentThread();
+        var stopped = new CountDownLatch(1);
+        var hook = Thread.ofPlatform().unstarted(() -> {
+            serving.interrupt();
+            try {
+                stopped.await(SHUTDOWN_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        Runtime.getRuntime().addShutdownHook(hook);
+        boolean bound = false;
+        try (var server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            bound = true;
+            restrict(socket);
+            var owner = Files.getOwner(socket, LinkOption.NOFOLLOW_LINKS);
+            LOGGER.info("Listening on {}", socket);
+            while (!Thread.currentThread().isInterrupted()) {
+                try (var channel = server.accept()) {
+                    // Checked as well as the socket's permissions, since a connection may have been queued before those
+                    // were set
+                    if (channel.supportedOptions().contains(ExtendedSocketOptions.SO_PEERCRED) && !owner.equals(channel.getOption(ExtendedSocketOptions.SO_PEERCRED).user())) {
+                        LOGGER.warn("Refused a connection from another user");
+                        continue;
+                    }
+                    serve(Channels.newInputStream(channel), Channels.newOutputStream(channel));
+                } catch (ClosedByInterruptException e) {
+                    break;
+                } catch (IOException e) {
+                    LOGGER.error("Failed to serve a connection", e);
+                }
+            }
+        } finally {
+            try {
+                if (bound) {
+                    Files.deleteIfExists(socket);
+                }
+                closeMappingSets();
+            } finally {
+                stopped.countDown();
+            }
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                // Already shutting down, with the hook waiting on this thread
+            }
+        }
+    }
+
+    /**
+     * Deletes a socket left behind by a daemon that is no longer running, and refuses to touch anything else.
+     */
+    private static void removeStale(Path socket) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(socket, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        if (!attributes.isOther() || !isSocket(socket)) {
+            throw new IOException(socket + " already exists and is not a socket; refusing to replace it");
+        }
+        boolean listening;
+        try (var probe = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            listening = probe.isConnected();
+        } catch (ConnectException e) {
+            listening = false;
+        }
+        if (listening) {
+            throw new IOException("Another daemon is already listening on " + socket);
+        }
+        Files.delete(socket);
+    }
+
+    private static boolean isSocket(Path path) throws IOException {
+        try {
+            int mode = (int) Files.getAttribute(path, "unix:mode", LinkOption.NOFOLLOW_LINKS);
+            return (mode & S_IFMT) == S_IFSOCK;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            // No file modes to check; a socket is the only other kind of file this could be that a daemon would leave
+            return true;
+        }
+    }
+
+    /**
+     * Makes a socket accessible to its owner alone, where the file system has POSIX permissions.
+     */
+    private static void restrict(Path socket) throws IOException {
+        try {
+            Files.setPosixFilePermissions(socket, EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE));
+        } catch (UnsupportedOperationException e) {
+            LOGGER.warn("Cannot restrict the permissions of {}; any user who can reach it may send requests", socket);
+        }
+    }
+
+    /**
+     * Serves requests read from {@code in} until it ends.
+     */
+    void serve(InputStream in, OutputStream out) throws IOException {
+        var reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+        var writer = new OutputStreamWriter(out, StandardCharsets.UTF_8);
+        List<String> request;
+        while ((request = readRequest(reader)) != null) {
+            String response;
+            try {
+                execute(Path.of(request.getFirst()), request.subList(1, request.size()));
+                response = "ok";
+            } catch (RuntimeException | IOException e) {
+                LOGGER.error("Failed to remap", e);
+                response = "error " + e.toString().replace('\n', ' ');
+            }
+            writer.write(response + "\n");
+            writer.flush();
+        }
+    }
+
+    void closeMappingSets() {
+        for (var mappings : mappingSets.values()) {
+            close(mappings);
+        }
+        mappingSets.clear();
+    }
+
+    /**
+     * Sends a request to the daemon listening on {@code socket}, and waits for it to be done.
+     */
+    static void send(Path socket, Path workingDirectory, List<String> args) throws IOException {
+        try (var channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            Writer writer = new OutputStreamWriter(Channels.newOutputStream(channel), StandardCharsets.UTF_8);
+            writeLine(writer, workingDirectory.toString());
+            for (var arg : args) {
+                writeLine(writer, arg);
+            }
+            writer.write('\n');
+            writer.flush();
+            var response = new BufferedReader(new InputStreamReader(Channels.newInputStream(channel), StandardCharsets.UTF_8)).readLine();
+            if (response == null) {
+                throw new IOException("Daemon at " + socket + " closed the connection without responding");
+            } else if (!response.equals("ok")) {
+                throw new RuntimeException("Daemon at " + socket + " failed: " + response.substring(Math.min(response.length(), "error ".length())));
+            }
+        }
+    }
+
+    private void execute(Path workingDirectory, List<String> args) throws IOException {
+        var request = new Main();
+        var parsed = new CommandLine(request).parseArgs(args.toArray(String[]::new));
+        request.resolveAgainst(workingDirectory);
+        request.checkJars();
+        request.checkRequestOptions(parsed);
+        var key = new Key(List.copyOf(request.vineflowerPaths), List.copyOf(request.patchPaths), List.copyOf(request.lineMaps), request.lazyMappings);
+        var mappings = mappingSets.get(key);
+        if (mappings != null && mappings.isStale()) {
+            LOGGER.info("Mapping inputs changed; reloading");
+            mappingSets.remove(key);
+            close(mappings);
+            mappings = null;
+        }
+        if (mappings == null) {
+            mappings = mapper.load(key.vineflowerPaths(), key.patchPaths(), key.lineMapPaths(), key.lazy());
+            mappingSets.put(key, mappings);
+            if (mappingSets.size() > MAX_MAPPING_SETS) {
+                var eldest = mappingSets.entrySet().iterator().next();
+                mappingSets.remove(eldest.getKey());
+                close(eldest.getValue());
+            }
+        }
+        mapper.remap(mappings, request.inputs, request.outputs, request.options());
+    }
+
+    private static List<String> readRequest(BufferedReader reader) throws IOException {
+        List<String> lines = new ArrayList<>();
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                if (lines.isEmpty()) {
+                    continue;
+                }
+                return lines;
+            }
+            lines.add(line);
+        }
+        if (!lines.isEmpty()) {
+            throw new IOException("Request ended before its terminating empty line");
+        }
+        return null;
+    }
+
+    private static void writeLine(Writer writer, String line) throws IOException {
+        if (line.isEmpty() || line.indexOf('\n') != -1 || line.indexOf('\r') != -1) {
+            throw new IllegalArgumentException("Cannot send empty arguments or arguments containing line breaks to a daemon: `" + line + "`");
+        }
+        writer.write(line);
+        writer.write('\n');
+    }
+
+    private static void close(MappingSet mappings) {
+        try {
+            mappings.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,286 @@
+package dev.lukebemish.linemapper.cli;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.stream.IntStream;
+
+/**
+ * Runs over jars with the same options: for each, entries are read ahead on a thread from {@code readers}, remapped on
+ * the shared worker pool, and written in their original order on a thread from {@code writers}. At most the queue depth
+ * of entries may be submitted but not yet written. Within that lookahead, entries are started in chunks, most expensive
+ * first, so that a huge class is not left to run alone after the smaller ones around it have finished. The arrays
+ * rewritten entries are compressed into are pooled, and given back once written. Several jars may be run at once, all
+ * adding to the same metrics.
+ */
+final class JarRemapper {
+    /**
+     * How many chunks the lookahead is split into; a chunk is sorted and submitted once there is room for all of it.
+     */
+    private static final int CHUNKS = 4;
+
+    private final ExecutorService executor;
+    private final int queueDepth;
+    private final RemapOptions options;
+    private final RunMetrics metrics;
+    private final ThreadFactory readers;
+    private final BufferPool buffers;
+
+    JarRemapper(ExecutorService executor, int queueDepth, RemapOptions options, RunMetrics metrics, ThreadFactory readers) {
+        this.executor = executor;
+        this.readers = readers;
+        this.queueDepth = queueDepth;
+        // Enough for every entry that can be in flight at once
+        this.buffers = new BufferPool(queueDepth);
+        this.options = options;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Remaps a single jar. {@code cache} may be {@code null}; it is shared by every jar of a batch, so that only one
+     * instance ever appends to a cache directory at a time.
+     */
+    void run(LineMappings mappings, RemapCache cache, Path input, Path output) throws IOException {
+        Files.createDirectories(output.getParent());
+        // Closed last, once the reader has stopped, to release whatever was expected but never processed
+        try (var expectations = mappings.expectations();
+             var archive = ArchiveReader.open(input);
+             var writer = ArchiveWriter.create(output)) {
+            // Bounded by the permits, which the reader takes before submitting an entry and the writer gives back once it
+            // has been written
+            BlockingQueue<Future<Entry>> pending = new LinkedBlockingQueue<>();
+            var permits = new Semaphore(queueDepth);
+            var reader = readers.newThread(() -> readEntries(archive, mappings, expectations, cache, pending, permits));
+            reader.start();
+            try {
+                while (true) {
+                    long wall = System.nanoTime();
+                    long cpu = RunMetrics.cpuTime();
+                    var entry = pending.take().get();
+                    metrics.record(RunMetrics.Phase.WAIT, wall, cpu);
+                    if (entry == END) {
+                        break;
+                    }
+                    wall = System.nanoTime();
+                    cpu = RunMetrics.cpuTime();
+                    if (entry.compressed() == null) {
+                        writer.copy(entry.entry(), entry.local());
+                    } else {
+                        writer.write(entry.entry(), entry.local(), entry.compressed());
+                        release(entry);
+                    }
+                    permits.release();
+                    metrics.record(RunMetrics.Phase.WRITE, wall, cpu);
+                }
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause) {
+                    throw cause;
+                } else if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                } else if (e.getCause() instanceof Error cause) {
+                    throw cause;
+                }
+                throw new RuntimeException(e.getCause());
+            } finally {
+                reader.interrupt();
+                try {
+                    reader.join();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                // Entries read ahead of a failure are dropped rather than left to run on the shared pool. They are not
+                // interrupted, which would close the cache's channels from under the other jars of the batch.
+                for (var future : pending) {
+                    future.cancel(false);
+                }
+            }
+        }
+    }
+
+    private void readEntries(ArchiveReader archive, LineMappings mappings, LineMappings.Expectations expectations, RemapCache cache, BlockingQueue<Future<Entry>> pending, Semaphore permits) {
+        List<Future<Entry>> futures = new ArrayList<>();
+        int queued = 0;
+        try {
+            for (var entry : archive.entries()) {
+                if (entry.isClass()) {
+                    expectations.expect(className(entry));
+                }
+            }
+            var entries = archive.entries();
+            int chunkSize = Math.max(1, queueDepth / CHUNKS);
+            for (int start = 0; start < entries.size(); start += chunkSize) {
+                var chunk = entries.subList(start, Math.min(entries.size(), start + chunkSize));
+                var order = IntStream.range(0, chunk.size()).boxed()
+                    .sorted(Comparator.comparingLong((Integer i) -> cost(chunk.get(i))).reversed())
+                    .toList();
+                permits.acquire(chunk.size());
+                futures = new ArrayList<>(Collections.nCopies(chunk.size(), null));
+                queued = 0;
+                for (int i : order) {
+                    var entry = chunk.get(i);
+                    futures.set(i, executor.submit(() -> mapEntry(archive, mappings, expectations, cache, entry)));
+                }
+                for (var future : futures) {
+                    pending.put(future);
+                    queued++;
+                    metrics.queueDepth(pending.size());
+                }
+            }
+            pending.put(CompletableFuture.completedFuture(END));
+        } catch (InterruptedException e) {
+            // The writer stopped early; nothing is waiting on further entries
+            cancel(futures, queued);
+        } catch (Throwable t) {
+            cancel(futures, queued);
+            // The queue is unbounded, so this cannot block; the writer fails with the cause once it gets here
+            pending.add(CompletableFuture.failedFuture(t));
+        }
+    }
+
+    /**
+     * Cancels the futures of a chunk from {@code queued} on, which the writer will never see.
+     */
+    private static void cancel(List<Future<Entry>> futures, int queued) {
+        for (int i = queued; i < futures.size(); i++) {
+            var future = futures.get(i);
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Estimates how long an entry will take to process, for ordering the entries within a chunk. Classes are patched and
+     * compressed again in proportion to their size; other entries are copied as they are, unless they have to be
+     * inflated to be stored, which is cheaper than compressing.
+     */
+    private long cost(ArchiveEntry entry) {
+        if (entry.isClass()) {
+            return entry.size();
+        } else if (options.stored() && entry.method() != ArchiveEntry.STORED) {
+            return entry.size() / 4;
+        }
+        return 0;
+    }
+
+    /**
+     * Processes a single entry. {@code expectations} may be {@code null} if nothing was expected of this entry.
+     */
+    Entry mapEntry(ArchiveReader archive, LineMappings mappings, LineMappings.Expectations expectations, RemapCache cache, ArchiveEntry entry) throws IOException {
+        metrics.entries.increment();
+        var local = archive.localHeader(entry);
+        byte[] contents = null;
+        if (entry.isClass()) {
+            var name = className(entry);
+            long wall = System.nanoTime();
+            long cpu = RunMetrics.cpuTime();
+            LineMappings.SourceMapping source;
+            try {
+                source = mappings.sourceMapping(name);
+            } finally {
+                if (expectations != null) {
+                    expectations.release(name);
+                }
+            }
+            var remapper = source.remapper();
+            metrics.lookups.increment();
+            if (source == LineMappings.SourceMapping.NONE) {
+                metrics.lookupMisses.increment();
+            }
+            metrics.record(RunMetrics.Phase.LOOKUP, wall, cpu);
+            var verification = metrics.verification;
+            if (verification != null) {
+                if (source == LineMappings.SourceMapping.NONE) {
+                    verification.unmapped(name);
+                } else {
+                    // Checked before patching, which happens in place; this is the only extra work for a cache hit
+                    wall = System.nanoTime();
+                    cpu = RunMetrics.cpuTime();
+                    contents = archive.inflate(entry, local.data());
+                    metrics.record(RunMetrics.Phase.INFLATE, wall, cpu);
+                    wall = System.nanoTime();
+                    cpu = RunMetrics.cpuTime();
+                    verification.check(name, source, contents, (int) entry.size());
+                    metrics.record(RunMetrics.Phase.VERIFY, wall, cpu);
+                }
+            }
+            if (!remapper.isIdentity()) {
+                int method = options.stored() || entry.method() == ArchiveEntry.STORED ? ArchiveEntry.STORED : ArchiveEntry.DEFLATED;
+                var key = cache == null ? null : RemapCache.key(entry, local.data(), remapper, method, options.compressionLevel());
+                var compressed = key == null ? null : cache.get(key);
+                if (compressed != null) {
+                    metrics.cacheHits.increment();
+                } else {
+                    if (contents == null) {
+                        wall = System.nanoTime();
+                        cpu = RunMetrics.cpuTime();
+                        contents = archive.inflate(entry, local.data());
+                        metrics.record(RunMetrics.Phase.INFLATE, wall, cpu);
+                    }
+                    wall = System.nanoTime();
+                    cpu = RunMetrics.cpuTime();
+                    boolean patched = LineNumberPatcher.patch(contents, (int) entry.size(), remapper);
+                    metrics.record(RunMetrics.Phase.PATCH, wall, cpu);
+                    if (!patched) {
+                        compressed = RemapCache.UNCHANGED;
+                    } else {
+                        wall = System.nanoTime();
+                        cpu = RunMetrics.cpuTime();
+                        compressed = ArchiveWriter.compress(contents, (int) entry.size(), method, options.compressionLevel(), buffers);
+                        metrics.record(RunMetrics.Phase.DEFLATE, wall, cpu);
+                    }
+                    if (key != null) {
+                        cache.put(key, compressed);
+                    }
+                }
+                if (compressed != RemapCache.UNCHANGED) {
+                    metrics.classesRewritten.increment();
+                    return new Entry(entry, local, compressed);
+                }
+            }
+            metrics.classesPassedThrough.increment();
+        }
+        if (options.stored() && entry.method() != ArchiveEntry.STORED) {
+            long wall = System.nanoTime();
+            long cpu = RunMetrics.cpuTime();
+            if (contents == null) {
+                contents = archive.inflate(entry, local.data());
+            }
+            var compressed = ArchiveWriter.compress(contents, (int) entry.size(), ArchiveEntry.STORED, options.compressionLevel(), buffers);
+            metrics.record(RunMetrics.Phase.DEFLATE, wall, cpu);
+            return new Entry(entry, local, compressed);
+        }
+        return new Entry(entry, local, null);
+    }
+
+    /**
+     * Gives back the pooled array an entry's contents were compressed into, once they have been written.
+     */
+    void release(Entry entry) {
+        if (entry.compressed() != null) {
+            buffers.release(entry.compressed().data());
+        }
+    }
+
+    private static String className(ArchiveEntry entry) {
+        return entry.name().substring(0, entry.name().length()-".class".length());
+    }
+
+    record Entry(ArchiveEntry entry, ArchiveReader.LocalHeader local, ArchiveWriter.Compressed compressed) {}
+
+    private static final Entry END = new Entry(null, null, null);
+}
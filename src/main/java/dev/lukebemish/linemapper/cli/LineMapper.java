@@ -0,0 +1,213 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Remaps the line numbers of jars in process. A single instance owns a pool of worker threads, shared by every mapping
+ * set it loads and every jar it remaps, so it is meant to be kept around for as long as there is work to do.
+ */
+public final class LineMapper implements AutoCloseable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LineMapper.class);
+
+    private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+    private final ExecutorService executor;
+    private final int queueDepth;
+    private final ThreadFactory readers;
+    private final ThreadFactory writers;
+
+    /**
+     * @param threads how many worker threads to use
+     * @param queueDepth how many entries of a jar may be read ahead of its writer; the most expensive entries within
+     *                   this lookahead are started first, so it should be well above {@code threads}
+     */
+    public LineMapper(int threads, int queueDepth) {
+        this(threads, queueDepth, false);
+    }
+
+    /**
+     * @param threads how many worker threads to use
+     * @param queueDepth how many entries of a jar may be read ahead of its writer; the most expensive entries within
+     *                   this lookahead are started first, so it should be well above {@code threads}
+     * @param virtualThreads whether each jar's reader and writer run on virtual threads rather than dedicated platform
+     *                       threads; entries are always remapped on the worker pool
+     */
+    public LineMapper(int threads, int queueDepth, boolean virtualThreads) {
+        this.executor = Executors.newWorkStealingPool(Math.max(1, threads));
+        this.queueDepth = Math.max(1, queueDepth);
+        if (virtualThreads) {
+            this.readers = Thread.ofVirtual().name("linemapper-reader-", 0).factory();
+            this.writers = Thread.ofVirtual().name("linemapper-writer-", 0).factory();
+        } else {
+            this.readers = Thread.ofPlatform().name("linemapper-reader-", 0).daemon().factory();
+            this.writers = Thread.ofPlatform().name("linemapper-writer-", 0).factory();
+        }
+    }
+
+    /**
+     * Loads line mapping inputs for later use with {@link #remap(MappingSet, Path, Path, RemapOptions)}.
+     * @param lazy whether to only index Vineflower output and patch archives up front, decoding a source's line data
+     *             when a class compiled from it is processed
+     */
+    public MappingSet load(List<Path> vineflowerPaths, List<Path> patchPaths, List<Path> lineMapPaths, boolean lazy) throws IOException {
+        return MappingSet.load(vineflowerPaths, patchPaths, lineMapPaths, lazy, executor);
+    }
+
+    /**
+     * Writes a copy of {@code input} to {@code output} with the line numbers of its classes remapped.
+     */
+    public void remap(MappingSet mappings, Path input, Path output, RemapOptions options) throws IOException {
+        remap(mappings, List.of(input), List.of(output), options);
+    }
+
+    /**
+     * Writes a copy of each of {@code inputs} to the output at the same index with the line numbers of its classes
+     * remapped. The jars are processed together, with their entries sharing the worker pool, and the run's metrics
+     * cover all of them. No output is replaced unless every jar was remapped and, if asked for, passed verification.
+     */
+    public void remap(MappingSet mappings, List<Path> inputs, List<Path> outputs, RemapOptions options) throws IOException {
+        if (inputs.size() != outputs.size()) {
+            throw new IllegalArgumentException("Expected as many outputs as inputs, but got " + inputs.size() + " inputs and " + outputs.size() + " outputs");
+        }
+        var inputPaths = inputs.stream().map(Path::toAbsolutePath).toList();
+        var outputPaths = outputs.stream().map(Path::toAbsolutePath).toList();
+        if (new HashSet<>(outputPaths).size() != outputPaths.size()) {
+            throw new IllegalArgumentException("Outputs must be distinct: " + outputPaths);
+        }
+        // Only read for --verify, so that an unverified run never opens the decompiled sources a second time
+        try (var sourceLengths = options.verify() ? SourceLengths.open(mappings.vineflowerPaths()) : null) {
+            var metrics = new RunMetrics(sourceLengths == null ? null : new MappingVerifier(sourceLengths));
+            remap(mappings, inputPaths, outputPaths, options, metrics);
+        }
+    }
+
+    private void remap(MappingSet mappings, List<Path> inputPaths, List<Path> outputPaths, RemapOptions options, RunMetrics metrics) throws IOException {
+        mappings.reportLoad(metrics);
+        var lineMappings = mappings.mappings();
+        long composedBefore = lineMappings.composed();
+        var remapper = new JarRemapper(executor, queueDepth, options, metrics, readers);
+        // Every jar is written next to its output and only moved into place once the whole batch has succeeded and
+        // passed verification, so that a failed run never leaves some outputs replaced and others not
+        List<Path> temporaryPaths = new ArrayList<>();
+        try {
+            for (var output : outputPaths) {
+                // Not Files.createTempFile, whose owner-only permissions would carry over to the output
+                temporaryPaths.add(output.resolveSibling("." + output.getFileName() + "." + UUID.randomUUID() + ".tmp"));
+            }
+            try (var cache = options.cacheDirectory() == null ? null : RemapCache.open(options.cacheDirectory().toAbsolutePath())) {
+                run(remapper, lineMappings, cache, inputPaths, temporaryPaths);
+            }
+            long inputBytes = 0;
+            long outputBytes = 0;
+            for (int i = 0; i < inputPaths.size(); i++) {
+                inputBytes += Files.size(inputPaths.get(i));
+                outputBytes += Files.size(temporaryPaths.get(i));
+            }
+            metrics.finish(inputBytes, mappings.bytes(), outputBytes, lineMappings.composed() - composedBefore);
+            metrics.log(LOGGER);
+            if (options.metrics() != null) {
+                metrics.writeJson(options.metrics().toAbsolutePath());
+            }
+            if (metrics.verification != null) {
+                var failure = metrics.verification.failure();
+                if (failure != null) {
+                    throw new IllegalStateException(failure + "; no output was written");
+                }
+            }
+            for (int i = 0; i < outputPaths.size(); i++) {
+                move(temporaryPaths.get(i), outputPaths.get(i));
+            }
+        } finally {
+            for (var path : temporaryPaths) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static void move(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Runs every jar on its own reader and writer threads, so that the pool is kept busy with one jar's entries while
+     * another's writer is waiting on a slow entry or finishing up. A single jar is run the same way, so that its writer
+     * is also on a thread from {@link #writers}.
+     */
+    private void run(JarRemapper remapper, LineMappings mappings, RemapCache cache, List<Path> inputs, List<Path> outputs) throws IOException {
+        var failures = new Exception[inputs.size()];
+        List<Thread> running = new ArrayList<>();
+        for (int i = 0; i < inputs.size(); i++) {
+            int index = i;
+            var writer = this.writers.newThread(() -> {
+                try {
+                    remapper.run(mappings, cache, inputs.get(index), outputs.get(index));
+                } catch (IOException | RuntimeException e) {
+                    failures[index] = e;
+                }
+            });
+            writer.start();
+            running.add(writer);
+        }
+        try {
+            for (var writer : running) {
+                writer.join();
+            }
+        } catch (InterruptedException e) {
+            running.forEach(Thread::interrupt);
+            throw new RuntimeException(e);
+        }
+        Exception failure = null;
+        for (int i = 0; i < failures.length; i++) {
+            if (failures[i] == null) {
+                continue;
+            }
+            LOGGER.error("Failed to remap {}", inputs.get(i), failures[i]);
+            if (failure == null) {
+                failure = failures[i];
+            } else {
+                failure.addSuppressed(failures[i]);
+            }
+        }
+        if (failure instanceof IOException e) {
+            throw e;
+        } else if (failure != null) {
+            throw (RuntimeException) failure;
+        }
+    }
+
+    /**
+     * Stops the worker pool, giving any entries still queued by a failed run a short time to finish before they are
+     * interrupted.
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            executor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
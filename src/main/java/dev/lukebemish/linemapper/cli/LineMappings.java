@@ -0,0 +1,558 @@
+package dev.lukebemish.linemapper.cli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The line mapping inputs for a run, keyed by source file, with each source's layers composed on first use. Composed
+ * remappers are kept until every class expected from their source has been released, and at most
+ * {@link #MAX_RESIDENT} of them at once, so that sources which are never released cannot pile up in a long-lived
+ * instance.
+ */
+final class LineMappings implements Closeable {
+    private static final int CHUNK_SIZE = 64;
+    static final int MAX_RESIDENT = 4096;
+
+    private final Sources sources;
+    // Composed outside the map, so that decoding one source never holds up others that hash to the same bin
+    private final Map<String, FutureTask<SourceMapping>> remappers = new ConcurrentHashMap<>();
+    private final Map<String, Integer> expected = new ConcurrentHashMap<>();
+    // Sources with a composed remapper, oldest first; guarded by itself
+    private final Set<String> resident = new LinkedHashSet<>();
+    private final LongAdder composed = new LongAdder();
+
+    private LineMappings(Sources sources) {
+        this.sources = sources;
+    }
+
+    LineMappings(Map<String, LineTable> lineMaps, Map<String, List<SingleFileOffset>> offsets) {
+        this(new Eager(lineMaps, offsets));
+    }
+
+    /**
+     * Where the line data for each source comes from.
+     */
+    private interface Sources extends Closeable {
+        LineTable lines(String source) throws IOException;
+
+        List<SingleFileOffset> offsets(String source) throws IOException;
+    }
+
+    private record Eager(Map<String, LineTable> lineMaps, Map<String, List<SingleFileOffset>> offsets) implements Sources {
+        @Override
+        public LineTable lines(String source) {
+            return lineMaps.get(source);
+        }
+
+        @Override
+        public List<SingleFileOffset> offsets(String source) {
+            return offsets.get(source);
+        }
+
+        @Override
+        public void close() {}
+    }
+
+    private record Located(ArchiveReader archive, ArchiveEntry entry) {}
+
+    /**
+     * The offsets a single JST line map holds for a source.
+     */
+    @FunctionalInterface
+    private interface LineMapLookup {
+        void offsets(String source, List<SingleFileOffset> offsets);
+    }
+
+    /**
+     * Reads a source's Vineflower map and patches from the still-open mapping archives only when asked for it.
+     */
+    private record Lazy(List<ArchiveReader> archives, Map<String, List<Located>> lineMaps, Map<String, List<Located>> patches, List<LineMapLookup> lineMapFiles) implements Sources {
+        @Override
+        public LineTable lines(String source) throws IOException {
+            var candidates = lineMaps.get(source);
+            if (candidates == null) {
+                return null;
+            }
+            // Later archives take precedence, but only if they actually carry line data for the source
+            for (int i = candidates.size() - 1; i >= 0; i--) {
+                var located = candidates.get(i);
+                var lines = getLineMap(located.archive().localHeader(located.entry()).extra());
+                if (lines != null) {
+                    return lines;
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public List<SingleFileOffset> offsets(String source) throws IOException {
+            List<SingleFileOffset> offsets = new ArrayList<>();
+            var located = patches.get(source);
+            if (located != null) {
+                for (var patch : located) {
+                    var archive = patch.archive();
+                    var entry = patch.entry();
+                    var contents = archive.inflate(entry, archive.localHeader(entry).data());
+                    offsets.add(SingleFileOffset.fromPatch(entry.name(), contents, (int) entry.size()));
+                }
+            }
+            for (var lineMap : lineMapFiles) {
+                lineMap.offsets(source, offsets);
+            }
+            return offsets.isEmpty() ? null : offsets;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (var archive : archives) {
+                archive.close();
+            }
+        }
+    }
+
+    /**
+     * Loads Vineflower output, patch archives and JST line maps. Files, and chunks of entries within each archive, are
+     * parsed concurrently on {@code executor}; the results are merged in the order the inputs were given, so offsets
+     * for a source are always applied in the same order.
+     */
+    static LineMappings load(List<Path> vineflowerPaths, List<Path> patchPaths, List<Path> lineMapPaths, ExecutorService executor) throws IOException {
+        List<ArchiveReader> archives = new ArrayList<>();
+        try {
+            List<List<Future<List<Named<LineTable>>>>> vineflower = new ArrayList<>();
+            for (var path : vineflowerPaths) {
+                var archive = ArchiveReader.open(path.toAbsolutePath());
+                archives.add(archive);
+                vineflower.add(parseArchive(archive, ".java", (entry, name) -> getLineMap(archive.localHeader(entry).extra()), executor));
+            }
+            List<List<Future<List<Named<SingleFileOffset>>>>> patches = new ArrayList<>();
+            for (var path : patchPaths) {
+                var archive = ArchiveReader.open(path.toAbsolutePath());
+                archives.add(archive);
+                patches.add(parseArchive(archive, ".java.patch", (entry, name) -> {
+                    var contents = archive.inflate(entry, archive.localHeader(entry).data());
+                    return SingleFileOffset.fromPatch(name, contents, (int) entry.size());
+                }, executor));
+            }
+            var lineMaps = submitLineMaps(lineMapPaths, executor);
+
+            Map<String, LineTable> lines = new ConcurrentHashMap<>();
+            for (var chunks : vineflower) {
+                for (var chunk : chunks) {
+                    for (var named : await(chunk)) {
+                        lines.put(named.source(), named.value());
+                    }
+                }
+            }
+            Map<String, List<SingleFileOffset>> offsets = new ConcurrentHashMap<>();
+            for (var chunks : patches) {
+                for (var chunk : chunks) {
+                    for (var named : await(chunk)) {
+                        offsets.computeIfAbsent(named.source(), k -> new ArrayList<>()).add(named.value());
+                    }
+                }
+            }
+            collectLineMaps(lineMaps, offsets);
+            return new LineMappings(lines, offsets);
+        } finally {
+            for (var archive : archives) {
+                archive.close();
+            }
+        }
+    }
+
+    /**
+     * Indexes Vineflower output and patch archives by source name, without decoding any entry; a source's data is only
+     * read when a remapper for it is first requested. The archives stay open until the returned mappings are closed.
+     * Binary JST line maps are looked up the same way; text ones have no index, so they are still parsed up front.
+     */
+    static LineMappings index(List<Path> vineflowerPaths, List<Path> patchPaths, List<Path> lineMapPaths, ExecutorService executor) throws IOException {
+        List<ArchiveReader> archives = new ArrayList<>();
+        try {
+            List<Future<LineMapLookup>> lineMaps = new ArrayList<>();
+            for (var path : lineMapPaths) {
+                lineMaps.add(executor.submit(() -> indexLineMap(path.toAbsolutePath())));
+            }
+            Map<String, List<Located>> vineflower = new ConcurrentHashMap<>();
+            for (var path : vineflowerPaths) {
+                var archive = ArchiveReader.open(path.toAbsolutePath());
+                archives.add(archive);
+                indexArchive(archive, ".java", vineflower);
+            }
+            Map<String, List<Located>> patches = new ConcurrentHashMap<>();
+            for (var path : patchPaths) {
+                var archive = ArchiveReader.open(path.toAbsolutePath());
+                archives.add(archive);
+                indexArchive(archive, ".java.patch", patches);
+            }
+            List<LineMapLookup> lineMapFiles = new ArrayList<>();
+            for (var lineMap : lineMaps) {
+                lineMapFiles.add(await(lineMap));
+            }
+            return new LineMappings(new Lazy(List.copyOf(archives), vineflower, patches, lineMapFiles));
+        } catch (IOException | RuntimeException e) {
+            for (var archive : archives) {
+                archive.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * {@return a handle through which a single run notes which classes it expects to process and releases them}
+     */
+    Expectations expectations() {
+        return new Expectations();
+    }
+
+    /**
+     * The classes a single run has expected and not yet released. Closing it releases whatever is left, for instance
+     * because the run failed partway, so that their sources' remappers are not kept forever; a class released after
+     * that is ignored.
+     */
+    final class Expectations implements AutoCloseable {
+        private final Map<String, Integer> outstanding = new ConcurrentHashMap<>();
+
+        private Expectations() {}
+
+        /**
+         * Notes that a class will be passed to {@link #release(String)} once it has been processed, so that its
+         * source's remapper can be dropped after the last such class.
+         */
+        void expect(String className) {
+            var source = sourceName(className);
+            outstanding.merge(source, 1, Integer::sum);
+            expected.merge(source, 1, Integer::sum);
+        }
+
+        void release(String className) {
+            var source = sourceName(className);
+            if (decrement(outstanding, source)) {
+                LineMappings.this.release(source, 1);
+            }
+        }
+
+        @Override
+        public void close() {
+            for (var source : outstanding.keySet()) {
+                var count = outstanding.remove(source);
+                if (count != null) {
+                    LineMappings.this.release(source, count);
+                }
+            }
+        }
+    }
+
+    private void release(String source, int count) {
+        // Counts are only changed inside the map's own atomic updates, so that a run expecting a source concurrently
+        // with another releasing its last class can never see its count removed from under it
+        var last = new boolean[1];
+        expected.computeIfPresent(source, (k, current) -> {
+            if (current <= count) {
+                last[0] = true;
+                return null;
+            }
+            return current - count;
+        });
+        if (last[0]) {
+            remappers.remove(source);
+            synchronized (resident) {
+                resident.remove(source);
+            }
+        }
+    }
+
+    /**
+     * Takes one from a count, removing it once it reaches zero, and returns whether there was one to take.
+     */
+    private static boolean decrement(Map<String, Integer> counts, String key) {
+        var taken = new boolean[1];
+        counts.computeIfPresent(key, (k, count) -> {
+            taken[0] = true;
+            return count == 1 ? null : count - 1;
+        });
+        return taken[0];
+    }
+
+    /**
+     * A source's composed remapper, along with the layers it was composed from, for verification.
+     * @param lines the Vineflower line map, or {@code null} if there is none
+     * @param offsets the patch and JST offsets, in the order they are applied
+     * @param lastLine the line that the last line Vineflower mapped anything to ends up on after every offset, or
+     *                 {@code -1} if there is no Vineflower line map
+     */
+    record SourceMapping(LineRemapper remapper, LineTable lines, List<SingleFileOffset> offsets, int lastLine) {
+        static final SourceMapping NONE = new SourceMapping(LineRemapper.IDENTITY, null, List.of(), -1);
+    }
+
+    /**
+     * {@return the composed remapper for the source a class was compiled from}
+     * Nested classes share the remapper of their outermost class.
+     */
+    LineRemapper remapper(String className) {
+        return sourceMapping(className).remapper();
+    }
+
+    SourceMapping sourceMapping(String className) {
+        var source = sourceName(className);
+        var mapping = remappers.get(source);
+        if (mapping == null) {
+            var composing = new FutureTask<>(() -> compose(source));
+            mapping = remappers.putIfAbsent(source, composing);
+            if (mapping != null) {
+                return join(source, mapping);
+            }
+            mapping = composing;
+            composing.run();
+            synchronized (resident) {
+                resident.add(source);
+                var iterator = resident.iterator();
+                while (resident.size() > MAX_RESIDENT) {
+                    remappers.remove(iterator.next());
+                    iterator.remove();
+                }
+            }
+        }
+        return join(source, mapping);
+    }
+
+    /**
+     * Waits for a source's remapper, which another thread may still be composing. One that failed to compose is
+     * dropped, so that the next class from its source tries again.
+     */
+    private SourceMapping join(String source, FutureTask<SourceMapping> mapping) {
+        try {
+            return mapping.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UncheckedIOException(new InterruptedIOException("Interrupted while composing line mappings for `" + source + "`"));
+        } catch (ExecutionException e) {
+            remappers.remove(source, mapping);
+            if (e.getCause() instanceof IOException io) {
+                throw new UncheckedIOException("Failed to load line mappings for `" + source + "`", io);
+            } else if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            } else if (e.getCause() instanceof Error error) {
+                throw error;
+            }
+            throw new RuntimeException("Failed to load line mappings for `" + source + "`", e.getCause());
+        }
+    }
+
+    static String sourceName(String className) {
+        var innerIndex = className.indexOf('$');
+        return innerIndex == -1 ? className : className.substring(0, innerIndex);
+    }
+
+    /**
+     * {@return how many remappers have been composed, counting a source again if its remapper was released and then
+     * requested again}
+     */
+    long composed() {
+        return composed.sum();
+    }
+
+    @Override
+    public void close() throws IOException {
+        sources.close();
+    }
+
+    private SourceMapping compose(String source) throws IOException {
+        composed.increment();
+        var lines = sources.lines(source);
+        var sourceOffsets = sources.offsets(source);
+        if (lines == null && sourceOffsets == null) {
+            return SourceMapping.NONE;
+        }
+        var offsets = sourceOffsets == null ? List.<SingleFileOffset>of() : sourceOffsets;
+        var remapper = LineRemapper.compose(lines == null ? LineTable.EMPTY : lines, offsets);
+        int lastLine = lines == null || lines.size() == 0 ? -1 : LineRemapper.evaluate(LineTable.EMPTY, offsets, lines.maxValue());
+        return new SourceMapping(remapper, lines, offsets, lastLine);
+    }
+
+    private static void indexArchive(ArchiveReader archive, String suffix, Map<String, List<Located>> index) {
+        for (var entry : archive.entries()) {
+            var name = entry.name();
+            if (name.endsWith(suffix)) {
+                index.computeIfAbsent(name.substring(0, name.length() - suffix.length()), k -> new ArrayList<>()).add(new Located(archive, entry));
+            }
+        }
+    }
+
+    private static List<Future<List<Named<SingleFileOffset>>>> submitLineMaps(List<Path> lineMapPaths, ExecutorService executor) {
+        List<Future<List<Named<SingleFileOffset>>>> lineMaps = new ArrayList<>();
+        for (var path : lineMapPaths) {
+            lineMaps.add(executor.submit(() -> parseLineMap(path.toAbsolutePath())));
+        }
+        return lineMaps;
+    }
+
+    private static void collectLineMaps(List<Future<List<Named<SingleFileOffset>>>> lineMaps, Map<String, List<SingleFileOffset>> offsets) throws IOException {
+        for (var lineMap : lineMaps) {
+            for (var named : await(lineMap)) {
+                offsets.computeIfAbsent(named.source(), k -> new ArrayList<>()).add(named.value());
+            }
+        }
+    }
+
+    private record Named<T>(String source, T value) {}
+
+    @FunctionalInterface
+    private interface EntryParser<T> {
+        T parse(ArchiveEntry entry, String name) throws IOException;
+    }
+
+    private static <T> List<Future<List<Named<T>>>> parseArchive(ArchiveReader archive, String suffix, EntryParser<T> parser, ExecutorService executor) {
+        List<Future<List<Named<T>>>> chunks = new ArrayList<>();
+        var entries = archive.entries();
+        for (int start = 0; start < entries.size(); start += CHUNK_SIZE) {
+            var chunk = entries.subList(start, Math.min(entries.size(), start + CHUNK_SIZE));
+            chunks.add(executor.submit(() -> {
+                List<Named<T>> parsed = new ArrayList<>();
+                for (var entry : chunk) {
+                    var name = entry.name();
+                    if (!name.endsWith(suffix)) {
+                        continue;
+                    }
+                    var value = parser.parse(entry, name);
+                    if (value != null) {
+                        parsed.add(new Named<>(name.substring(0, name.length() - suffix.length()), value));
+                    }
+                }
+                return parsed;
+            }));
+        }
+        return chunks;
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading line mappings");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException io) {
+                throw io;
+            } else if (e.getCause() instanceof RuntimeException runtime) {
+                throw runtime;
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    private static LineMapLookup indexLineMap(Path lineMap) throws IOException {
+        if (BinaryLineMap.isBinary(lineMap)) {
+            var binary = BinaryLineMap.open(lineMap);
+            return (source, offsets) -> {
+                int index = binary.find(source);
+                if (index != -1) {
+                    offsets.add(binary.offsets(index));
+                }
+            };
+        }
+        Map<String, List<SingleFileOffset>> bySource = new HashMap<>();
+        for (var named : parseLineMap(lineMap)) {
+            bySource.computeIfAbsent(named.source(), k -> new ArrayList<>()).add(named.value());
+        }
+        return (source, offsets) -> {
+            var found = bySource.get(source);
+            if (found != null) {
+                offsets.addAll(found);
+            }
+        };
+    }
+
+    /**
+     * Reads every offset in a JST line map, in either the text or the binary format.
+     */
+    private static List<Named<SingleFileOffset>> parseLineMap(Path lineMap) throws IOException {
+        List<Named<SingleFileOffset>> offsets = new ArrayList<>();
+        if (BinaryLineMap.isBinary(lineMap)) {
+            var binary = BinaryLineMap.open(lineMap);
+            for (int i = 0; i < binary.size(); i++) {
+                offsets.add(new Named<>(binary.source(i), binary.offsets(i)));
+            }
+            return offsets;
+        }
+        var lines = Files.readAllLines(lineMap, StandardCharsets.UTF_8);
+        String source = null;
+        var singleSourceOffsets = new LineTable.Builder();
+        for (var line : lines) {
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            if (line.startsWith("source ")) {
+                if (source != null && singleSourceOffsets.size() != 0) {
+                    offsets.add(new Named<>(source, new SingleFileOffset(singleSourceOffsets)));
+                    singleSourceOffsets.clear();
+                }
+                source = line.substring("source ".length()).trim();
+                continue;
+            }
+            var parts = line.split("->");
+            if (parts.length != 2) {
+                throw new RuntimeException("Unknown syntax in line mapping file: `"+line+"`");
+            }
+            int original;
+            int transformed;
+            try {
+                original = Integer.parseInt(parts[0].trim());
+                transformed = Integer.parseInt(parts[1].trim());
+            } catch (NumberFormatException e) {
+                throw new RuntimeException("Failed to parse line mapping: `"+line+"`", e);
+            }
+            if (source == null) {
+                throw new RuntimeException("No source specified for line mapping: `"+line+"`");
+            }
+            singleSourceOffsets.add(original, transformed);
+        }
+        if (source != null && singleSourceOffsets.size() != 0) {
+            offsets.add(new Named<>(source, new SingleFileOffset(singleSourceOffsets)));
+        }
+        return offsets;
+    }
+
+    static LineTable getLineMap(byte[] extra) {
+        if (extra == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(extra);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining() && buffer.getShort() != 0x4646) {
+            var length = buffer.getShort();
+            buffer.position(buffer.position() + length);
+        }
+        if (buffer.remaining() == 0) {
+            return null;
+        }
+        var length = buffer.getShort();
+        if (buffer.get() != (byte) 1) {
+            return null; // we don't know how to deal with other versions
+        }
+        var map = new LineTable.Builder((length-1)/4);
+        for (int i = 0; i < (length-1)/2; i+=2) {
+            map.add(buffer.getShort(), buffer.getShort());
+        }
+        return map.build();
+    }
+}
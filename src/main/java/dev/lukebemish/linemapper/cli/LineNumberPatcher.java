@@ -0,0 +1,234 @@
+package dev.lukebemish.linemapper.cli;
+
+import java.util.Arrays;
+
+/**
+ * Rewrites the {@code LineNumberTable} attributes of a class file in place. Remapping a line never changes the size of
+ * the attribute, so the rest of the class file, including its constant pool, is left byte-for-byte untouched, and the
+ * class can be patched directly in the buffer it was inflated into.
+ */
+final class LineNumberPatcher {
+    private static final byte[] CODE = {'C', 'o', 'd', 'e'};
+    private static final byte[] LINE_NUMBER_TABLE = {'L', 'i', 'n', 'e', 'N', 'u', 'm', 'b', 'e', 'r', 'T', 'a', 'b', 'l', 'e'};
+    private static final byte OTHER_NAME = 0;
+    private static final byte CODE_NAME = 1;
+    private static final byte LINE_NUMBER_TABLE_NAME = 2;
+
+    private static final ThreadLocal<Scanner> SCANNER = ThreadLocal.withInitial(Scanner::new);
+
+    private LineNumberPatcher() {}
+
+    /**
+     * Remaps every line number in the first {@code length} bytes of {@code contents}, in place.
+     * @return whether any line number changed
+     */
+    static boolean patch(byte[] contents, int length, LineRemapper remapper) {
+        var scanner = SCANNER.get();
+        boolean changed = false;
+        try {
+            scanner.reset(contents, length);
+            for (int position = scanner.nextLineTable(); position != -1; position = scanner.nextLineTable()) {
+                int count = scanner.u2(position);
+                for (int i = 0; i < count; i++) {
+                    int entry = position + 2 + i * 4 + 2;
+                    int line = scanner.u2(entry);
+                    int mapped = remapper.map(line) & 0xFFFF;
+                    if (mapped != line) {
+                        contents[entry] = (byte) (mapped >>> 8);
+                        contents[entry + 1] = (byte) mapped;
+                        changed = true;
+                    }
+                }
+            }
+        } finally {
+            scanner.reset(null, 0);
+        }
+        return changed;
+    }
+
+    /**
+     * Receives every line number of a class file, along with the index of the method it belongs to.
+     */
+    @FunctionalInterface
+    interface LineVisitor {
+        void visit(int method, int line);
+    }
+
+    /**
+     * Passes every line number in the first {@code length} bytes of {@code contents} to {@code visitor}, in the order
+     * they appear in the class file.
+     */
+    static void forEachLine(byte[] contents, int length, LineVisitor visitor) {
+        var scanner = SCANNER.get();
+        try {
+            scanner.reset(contents, length);
+            for (int position = scanner.nextLineTable(); position != -1; position = scanner.nextLineTable()) {
+                int count = scanner.u2(position);
+                for (int i = 0; i < count; i++) {
+                    visitor.visit(scanner.method, scanner.u2(position + 2 + i * 4 + 2));
+                }
+            }
+        } finally {
+            scanner.reset(null, 0);
+        }
+    }
+
+    /**
+     * Walks a class file's methods, yielding the offset of each {@code LineNumberTable} attribute's body.
+     */
+    private static final class Scanner {
+        private byte[] bytes;
+        private int length;
+        // What each constant pool entry names, by index; a class may hold the same Utf8 constant more than once
+        private byte[] names = new byte[256];
+        private int poolCount;
+        private boolean hasCode;
+        private boolean hasLineNumberTable;
+
+        private int position;
+        private int method;
+        private int methodsRemaining;
+        private int methodAttributesRemaining;
+        private int codeAttributesRemaining;
+
+        /**
+         * Starts walking a new class file, or with {@code null}, lets go of the last one.
+         */
+        void reset(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+            poolCount = 0;
+            hasCode = false;
+            hasLineNumberTable = false;
+            method = -1;
+            methodAttributesRemaining = 0;
+            codeAttributesRemaining = 0;
+            methodsRemaining = 0;
+            if (bytes == null) {
+                return;
+            }
+            if (length < 10 || u4(0) != 0xCAFEBABE) {
+                throw new IllegalArgumentException("Not a class file");
+            }
+            poolCount = u2(8);
+            if (names.length < poolCount) {
+                names = new byte[Math.max(poolCount, names.length * 2)];
+            }
+            Arrays.fill(names, 0, poolCount, OTHER_NAME);
+            position = 10;
+            for (int i = 1; i < poolCount; i++) {
+                int tag = u1(position);
+                switch (tag) {
+                    case 1 -> {
+                        int utfLength = u2(position + 1);
+                        if (matches(position + 3, utfLength, CODE)) {
+                            names[i] = CODE_NAME;
+                            hasCode = true;
+                        } else if (matches(position + 3, utfLength, LINE_NUMBER_TABLE)) {
+                            names[i] = LINE_NUMBER_TABLE_NAME;
+                            hasLineNumberTable = true;
+                        }
+                        position += 3 + utfLength;
+                    }
+                    case 7, 8, 16, 19, 20 -> position += 3;
+                    case 15 -> position += 4;
+                    case 3, 4, 9, 10, 11, 12, 17, 18 -> position += 5;
+                    case 5, 6 -> {
+                        position += 9;
+                        i++;
+                    }
+                    default -> throw new IllegalArgumentException("Unknown constant pool tag " + tag + " at offset " + position);
+                }
+            }
+            // access_flags, this_class, super_class
+            position += 6;
+            position += 2 + 2 * u2(position);
+            int fieldCount = u2(position);
+            position += 2;
+            for (int i = 0; i < fieldCount; i++) {
+                position += 6;
+                skipAttributes();
+            }
+            methodsRemaining = u2(position);
+            position += 2;
+        }
+
+        int nextLineTable() {
+            if (!hasCode || !hasLineNumberTable) {
+                return -1;
+            }
+            while (true) {
+                if (codeAttributesRemaining > 0) {
+                    codeAttributesRemaining--;
+                    int name = u2(position);
+                    int attributeLength = u4(position + 2);
+                    int body = position + 6;
+                    position = body + attributeLength;
+                    if (names(name, LINE_NUMBER_TABLE_NAME)) {
+                        return body;
+                    }
+                } else if (methodAttributesRemaining > 0) {
+                    methodAttributesRemaining--;
+                    int name = u2(position);
+                    int attributeLength = u4(position + 2);
+                    int body = position + 6;
+                    if (names(name, CODE_NAME)) {
+                        // max_stack, max_locals, code_length and code, then the exception table
+                        int cursor = body + 4;
+                        cursor += 4 + u4(cursor);
+                        cursor += 2 + 8 * u2(cursor);
+                        codeAttributesRemaining = u2(cursor);
+                        position = cursor + 2;
+                    } else {
+                        position = body + attributeLength;
+                    }
+                } else if (methodsRemaining > 0) {
+                    methodsRemaining--;
+                    method++;
+                    position += 6;
+                    methodAttributesRemaining = u2(position);
+                    position += 2;
+                } else {
+                    return -1;
+                }
+            }
+        }
+
+        private boolean names(int index, byte kind) {
+            return index < poolCount && names[index] == kind;
+        }
+
+        private void skipAttributes() {
+            int count = u2(position);
+            position += 2;
+            for (int i = 0; i < count; i++) {
+                position += 6 + u4(position + 2);
+            }
+        }
+
+        private boolean matches(int offset, int utfLength, byte[] expected) {
+            return utfLength == expected.length && Arrays.equals(bytes, offset, offset + utfLength, expected, 0, expected.length);
+        }
+
+        private int u1(int offset) {
+            check(offset, 1);
+            return bytes[offset] & 0xFF;
+        }
+
+        int u2(int offset) {
+            check(offset, 2);
+            return ((bytes[offset] & 0xFF) << 8) | (bytes[offset + 1] & 0xFF);
+        }
+
+        private int u4(int offset) {
+            check(offset, 4);
+            return ((bytes[offset] & 0xFF) << 24) | ((bytes[offset + 1] & 0xFF) << 16) | ((bytes[offset + 2] & 0xFF) << 8) | (bytes[offset + 3] & 0xFF);
+        }
+
+        private void check(int offset, int size) {
+            if (offset < 0 || offset + size > length) {
+                throw new IllegalArgumentException("Truncated class file at offset " + offset);
+            }
+        }
+    }
+}
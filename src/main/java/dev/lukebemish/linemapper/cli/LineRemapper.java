@@ -0,0 +1,158 @@
+package dev.lukebemish.linemapper.cli;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Every line mapping layer for a single source file, composed into one piecewise offset table: line {@code x} maps to
+ * {@code x + deltas[i]}, where {@code i} is the last index with {@code starts[i] <= x}, or to itself if there is none.
+ */
+final class LineRemapper {
+    static final LineRemapper IDENTITY = new LineRemapper(new int[0], new int[0]);
+    static final int MIN_LINE = 0;
+    static final int MAX_LINE = 0xFFFF;
+
+    private final int[] starts;
+    private final int[] deltas;
+
+    private LineRemapper(int[] starts, int[] deltas) {
+        this.starts = starts;
+        this.deltas = deltas;
+    }
+
+    int map(int line) {
+        int low = 0;
+        int high = starts.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (starts[mid] <= line) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low == 0 ? line : line + deltas[low - 1];
+    }
+
+    boolean isIdentity() {
+        return starts.length == 0;
+    }
+
+    /**
+     * Feeds this table into a digest, such that two remappers give the same input exactly when they map every line
+     * the same way.
+     */
+    void update(MessageDigest digest) {
+        var buffer = ByteBuffer.allocate(4 + starts.length * 8).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(starts.length);
+        for (int i = 0; i < starts.length; i++) {
+            buffer.putInt(starts[i]).putInt(deltas[i]);
+        }
+        digest.update(buffer.flip());
+    }
+
+    /**
+     * Composes a Vineflower line map, applied first, with offsets applied in order after it. The result is exact for
+     * every line a class file can hold, from {@code 0} to {@code 65535}.
+     */
+    static LineRemapper compose(LineTable lines, List<SingleFileOffset> offsets) {
+        // Find every line where the delta of the offsets alone may change. A threshold t of the next offset splits a
+        // segment of the composition so far wherever that segment's delta d maps a line onto t, at line t - d.
+        int[] breaks = {MIN_LINE};
+        for (int layer = 0; layer < offsets.size(); layer++) {
+            int[] thresholds = offsets.get(layer).thresholds();
+            if (thresholds.length == 0) {
+                continue;
+            }
+            var added = new LineTable.Builder(thresholds.length);
+            for (int segment = 0; segment < breaks.length; segment++) {
+                int from = breaks[segment];
+                int to = segment + 1 < breaks.length ? breaks[segment + 1] : MAX_LINE + 1;
+                int delta = evaluate(offsets, layer, from) - from;
+                for (int i = lowerBound(thresholds, from + delta); i < thresholds.length && thresholds[i] < to + delta; i++) {
+                    added.add(thresholds[i] - delta, 0);
+                }
+            }
+            breaks = merge(breaks, added);
+        }
+
+        // The Vineflower map replaces single lines, so each of its keys starts a one-line segment
+        var points = new LineTable.Builder(breaks.length + lines.size() * 2);
+        for (int i = 0; i < lines.size(); i++) {
+            points.add(lines.key(i), 0);
+            points.add(lines.key(i) + 1, 0);
+        }
+        int[] candidates = merge(breaks, points);
+
+        int[] starts = new int[candidates.length];
+        int[] deltas = new int[candidates.length];
+        int count = 0;
+        int previous = 0;
+        for (int start : candidates) {
+            int delta = evaluate(lines, offsets, start) - start;
+            if (delta != previous) {
+                starts[count] = start;
+                deltas[count] = delta;
+                count++;
+                previous = delta;
+            }
+        }
+        if (count == 0) {
+            return IDENTITY;
+        }
+        return new LineRemapper(Arrays.copyOf(starts, count), Arrays.copyOf(deltas, count));
+    }
+
+    /**
+     * Maps a line through every layer one at a time; this is what the composed table must agree with.
+     */
+    static int evaluate(LineTable lines, List<SingleFileOffset> offsets, int line) {
+        return evaluate(offsets, offsets.size(), lines.map(line));
+    }
+
+    private static int evaluate(List<SingleFileOffset> offsets, int layers, int line) {
+        for (int i = 0; i < layers; i++) {
+            line = offsets.get(i).remapLineNumber(line);
+        }
+        return line;
+    }
+
+    private static int lowerBound(int[] sorted, int value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Merges the keys of {@code added} that are valid line numbers into a sorted set of lines.
+     */
+    private static int[] merge(int[] sorted, LineTable.Builder added) {
+        int[] all = Arrays.copyOf(sorted, sorted.length + added.size());
+        int size = sorted.length;
+        for (int i = 0; i < added.size(); i++) {
+            int line = added.key(i);
+            if (line >= MIN_LINE && line <= MAX_LINE) {
+                all[size++] = line;
+            }
+        }
+        Arrays.sort(all, 0, size);
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (count == 0 || all[count - 1] != all[i]) {
+                all[count++] = all[i];
+            }
+        }
+        return Arrays.copyOf(all, count);
+    }
+}
@@ -0,0 +1,128 @@
+package dev.lukebemish.linemapper.cli;
+
+import java.util.Arrays;
+
+/**
+ * An immutable map from line numbers to line numbers, stored as parallel sorted {@code int} arrays.
+ */
+final class LineTable {
+    static final LineTable EMPTY = new LineTable(new int[0], new int[0]);
+
+    private final int[] keys;
+    private final int[] values;
+
+    private LineTable(int[] keys, int[] values) {
+        this.keys = keys;
+        this.values = values;
+    }
+
+    /**
+     * {@return the line {@code line} maps to, or {@code line} itself if it has no mapping}
+     */
+    int map(int line) {
+        int index = Arrays.binarySearch(keys, line);
+        return index < 0 ? line : values[index];
+    }
+
+    boolean contains(int line) {
+        return Arrays.binarySearch(keys, line) >= 0;
+    }
+
+    /**
+     * {@return the largest line any line maps to, or {@code -1} if the table is empty}
+     */
+    int maxValue() {
+        int max = -1;
+        for (int value : values) {
+            max = Math.max(max, value);
+        }
+        return max;
+    }
+
+    int size() {
+        return keys.length;
+    }
+
+    int key(int index) {
+        return keys[index];
+    }
+
+    static final class Builder {
+        private int[] keys;
+        private int[] values;
+        private int size;
+
+        Builder() {
+            this(16);
+        }
+
+        Builder(int capacity) {
+            this.keys = new int[Math.max(capacity, 1)];
+            this.values = new int[Math.max(capacity, 1)];
+        }
+
+        Builder add(int key, int value) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            keys[size] = key;
+            values[size] = value;
+            size++;
+            return this;
+        }
+
+        int size() {
+            return size;
+        }
+
+        int key(int index) {
+            return keys[index];
+        }
+
+        int value(int index) {
+            return values[index];
+        }
+
+        void clear() {
+            size = 0;
+        }
+
+        /**
+         * Builds a table from the added pairs. If a key was added more than once, the last value added for it wins.
+         */
+        LineTable build() {
+            if (size == 0) {
+                return EMPTY;
+            }
+            boolean sorted = true;
+            for (int i = 1; i < size && sorted; i++) {
+                sorted = keys[i - 1] < keys[i];
+            }
+            if (sorted) {
+                return new LineTable(Arrays.copyOf(keys, size), Arrays.copyOf(values, size));
+            }
+            // Sort indices by key, then by insertion order, packed into longs so the sort stays primitive
+            long[] order = new long[size];
+            for (int i = 0; i < size; i++) {
+                order[i] = ((long) keys[i] << 32) | i;
+            }
+            Arrays.sort(order);
+            int[] sortedKeys = new int[size];
+            int[] sortedValues = new int[size];
+            int count = 0;
+            for (long packed : order) {
+                int key = (int) (packed >> 32);
+                int value = values[(int) packed];
+                if (count > 0 && sortedKeys[count - 1] == key) {
+                    sortedValues[count - 1] = value;
+                } else {
+                    sortedKeys[count] = key;
+                    sortedValues[count] = value;
+                    count++;
+                }
+            }
+            return new LineTable(Arrays.copyOf(sortedKeys, count), Arrays.copyOf(sortedValues, count));
+        }
+    }
+}
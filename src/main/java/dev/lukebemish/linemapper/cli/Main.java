@@ -1,44 +1,26 @@
 package dev.lukebemish.linemapper.cli;
 
-import org.objectweb.asm.ClassReader;
-import org.objectweb.asm.ClassVisitor;
-import org.objectweb.asm.ClassWriter;
-import org.objectweb.asm.Label;
-import org.objectweb.asm.MethodVisitor;
-import org.objectweb.asm.Opcodes;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import picocli.CommandLine;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.UncheckedIOException;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.nio.charset.StandardCharsets;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
+import java.util.zip.Deflater;
 
 @CommandLine.Command(name = "linemapper", mixinStandardHelpOptions = true, description = "Map line numbers in bytecode given vineflower output")
 public class Main implements Runnable {
-    private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
+    static final int DEFAULT_BATCH_SIZE = 256;
+    /**
+     * Options that configure the process doing the remapping, which a daemon is given once, when it is started.
+     */
+    private static final List<String> PROCESS_OPTIONS = List.of("--threads", "--batch-size", "--virtual-threads");
 
-    @CommandLine.Option(names = "--input", description = "Input jar", required = true)
-    Path input;
+    @CommandLine.Option(names = "--input", description = "Input jar; may be given several times to remap several jars against the same mappings in one run. Required unless serving as a daemon")
+    List<Path> inputs = List.of();
 
-    @CommandLine.Option(names = "--output", description = "Output jar", required = true)
-    Path output;
+    @CommandLine.Option(names = "--output", description = "Output jar, one for each --input in the same order; required unless serving as a daemon")
+    List<Path> outputs = List.of();
 
     @CommandLine.Option(names = "--vineflower", description = "Vineflower output", arity = "*")
     List<Path> vineflowerPaths = List.of();
@@ -46,11 +28,47 @@ public class Main implements Runnable {
     @CommandLine.Option(names = "--patches", description = "Patch archive files", arity = "*")
     List<Path> patchPaths = List.of();
 
-    @CommandLine.Option(names = "--line-maps", description = "Line maps generated by JST line mapper plugin", arity = "*")
+    @CommandLine.Option(names = "--line-maps", description = "Line maps generated by JST line mapper plugin, in either its text or binary format", arity = "*")
     List<Path> lineMaps = List.of();
 
-    @CommandLine.Option(names = "--batch-size", description = "How many class files to process at once")
-    int batchSize = Runtime.getRuntime().availableProcessors();
+    @CommandLine.Option(names = "--lazy-mappings", description = "Only index Vineflower output and patch archives up front, decoding a source's line data when a class compiled from it is processed")
+    boolean lazyMappings;
+
+    @CommandLine.Option(names = "--batch-size", description = "How many entries of a jar may be read ahead of its writer; the most expensive entries within this lookahead are started first, so it should be well above --threads. Defaults to 256; for a daemon, give it when starting the daemon")
+    int batchSize = DEFAULT_BATCH_SIZE;
+
+    @CommandLine.Option(names = "--threads", description = "How many worker threads to remap entries on; defaults to the number of available processors; for a daemon, give it when starting the daemon")
+    int threads = Runtime.getRuntime().availableProcessors();
+
+    @CommandLine.Option(names = "--virtual-threads", description = "Run each jar's reader and writer on virtual threads rather than dedicated platform threads; entries are always remapped on the --threads worker pool; for a daemon, give it when starting the daemon")
+    boolean virtualThreads;
+
+    @CommandLine.Option(names = "--compression-level", description = "Deflate level, from 0 to 9, for entries whose contents are rewritten; -1 uses the default level. Entries that are copied unchanged keep their original compression")
+    int compressionLevel = Deflater.DEFAULT_COMPRESSION;
+
+    @CommandLine.Option(names = "--cache", description = "Directory in which to cache rewritten classes between runs, so that only classes whose contents or line mappings changed are processed again")
+    Path cacheDirectory;
+
+    @CommandLine.Option(names = "--stored", description = "Write every entry uncompressed, for intermediate jars that are only read by later build steps")
+    boolean stored;
+
+    @CommandLine.Option(names = "--metrics", description = "File to write run metrics and per-phase timings to, as JSON; they are always logged")
+    Path metricsPath;
+
+    @CommandLine.Option(names = "--verify", description = "Check where every class's lines were mapped to while remapping, and fail without writing any output if any land outside their source; statistics are logged and included in --metrics")
+    boolean verify;
+
+    @CommandLine.Option(names = "--serve", description = "Run as a daemon serving requests from clients started with --daemon on this Unix domain socket, keeping mappings loaded between them; only the user running the daemon may connect to it")
+    Path serveSocket;
+
+    @CommandLine.Option(names = "--serve-stdin", description = "Run as a daemon serving requests from standard input, replying on standard output")
+    boolean serveStdin;
+
+    @CommandLine.Option(names = "--daemon", description = "Send this invocation to the daemon listening on this Unix domain socket instead of processing it here")
+    Path daemonSocket;
+
+    @CommandLine.Spec
+    CommandLine.Model.CommandSpec spec;
 
     public static void main(String[] args) {
         var exitCode = new CommandLine(new Main()).execute(args);
@@ -59,238 +77,75 @@ public static void main(String[] args) {
 
     @Override
     public void run() {
-        input = input.toAbsolutePath();
-        output = output.toAbsolutePath();
-        Map<String, Map<Integer, Integer>> lineMappings = new HashMap<>();
-        Map<String, List<SingleFileOffset>> offsets = new HashMap<>();
-
-        for (var vineflower : vineflowerPaths) {
-            vineflower = vineflower.toAbsolutePath();
-            try (var is = Files.newInputStream(vineflower);
-                 var zis = new ZipInputStream(is)) {
-                ZipEntry entry;
-                while ((entry = zis.getNextEntry()) != null) {
-                    if (entry.getName().endsWith(".java")) {
-                        Map<Integer, Integer> lines = getLineMap(entry.getExtra());
-                        if (lines != null) {
-                            lineMappings.put(entry.getName().substring(0, entry.getName().length()-5), lines);
+        try {
+            if (serveSocket != null || serveStdin) {
+                try (var mapper = new LineMapper(threads, batchSize, virtualThreads)) {
+                    var daemon = new Daemon(mapper);
+                    if (serveSocket != null) {
+                        daemon.serve(serveSocket.toAbsolutePath());
+                    } else {
+                        try {
+                            daemon.serve(System.in, System.out);
+                        } finally {
+                            daemon.closeMappingSets();
                         }
                     }
                 }
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
+                return;
             }
-        }
-
-        for (var patch : patchPaths) {
-            patch = patch.toAbsolutePath();
-            try (var is = Files.newInputStream(patch);
-                 var zis = new ZipInputStream(is)) {
-                ZipEntry entry;
-                while ((entry = zis.getNextEntry()) != null) {
-                    if (entry.getName().endsWith(".java.patch")) {
-                        var bytes = zis.readAllBytes();
-                        var lines = new String(bytes, StandardCharsets.UTF_8).lines().toList();
-                        var name = entry.getName().substring(0, entry.getName().length()-".java.patch".length());
-                        offsets.computeIfAbsent(name, k -> new ArrayList<>()).add(SingleFileOffset.fromPatchLines(entry.getName(), lines));
-                    }
-                }
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
+            checkJars();
+            var options = options();
+            if (daemonSocket != null) {
+                checkRequestOptions(spec.commandLine().getParseResult());
+                Daemon.send(daemonSocket.toAbsolutePath(), Path.of("").toAbsolutePath(), spec.commandLine().getParseResult().originalArgs());
+                return;
             }
-        }
-
-        for (var lineMap : lineMaps) {
-            lineMap = lineMap.toAbsolutePath();
-            try {
-                var lines = Files.readAllLines(lineMap, StandardCharsets.UTF_8);
-                String source = null;
-                List<SingleFileOffset.Offset> singleSourceOffsets = new ArrayList<>();
-                for (var line : lines) {
-                    line = line.trim();
-                    if (line.isEmpty()) {
-                        continue;
-                    }
-                    if (line.startsWith("source ")) {
-                        if (source != null && !singleSourceOffsets.isEmpty()) {
-                            offsets.computeIfAbsent(source, k -> new ArrayList<>()).add(new SingleFileOffset(List.copyOf(singleSourceOffsets)));
-                            singleSourceOffsets.clear();
-                        }
-                        source = line.substring("source ".length()).trim();
-                        continue;
-                    }
-                    var parts = line.split("->");
-                    if (parts.length != 2) {
-                        throw new RuntimeException("Unknown syntax in line mapping file: `"+line+"`");
-                    }
-                    int original;
-                    int transformed;
-                    try {
-                        original = Integer.parseInt(parts[0].trim());
-                        transformed = Integer.parseInt(parts[1].trim());
-                    } catch (NumberFormatException e) {
-                        throw new RuntimeException("Failed to parse line mapping: `"+line+"`", e);
-                    }
-                    if (source == null) {
-                        throw new RuntimeException("No source specified for line mapping: `"+line+"`");
-                    }
-                    singleSourceOffsets.add(new SingleFileOffset.Offset(original, transformed));
-                }
-                if (source != null && !singleSourceOffsets.isEmpty()) {
-                    offsets.computeIfAbsent(source, k -> new ArrayList<>()).add(new SingleFileOffset(singleSourceOffsets));
-                }
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
+            try (var mapper = new LineMapper(threads, batchSize, virtualThreads);
+                 var mappings = mapper.load(vineflowerPaths, patchPaths, lineMaps, lazyMappings)) {
+                mapper.remap(mappings, inputs, outputs, options);
             }
-        }
-
-        try {
-            Files.createDirectories(output.getParent());
         } catch (IOException e) {
             throw new UncheckedIOException(e);
         }
-        try (var is = Files.newInputStream(input);
-             var os = Files.newOutputStream(output);
-             var zis = new ZipInputStream(is);
-             var zos = new ZipOutputStream(os)) {
-            Entry[] entries = new Entry[batchSize];
-            byte[][] labelled = new byte[batchSize][];
-            Future<?>[] futures = new Future[batchSize];
-            ZipEntry entry;
-            while ((entry = zis.getNextEntry()) != null) {
-                int i = 0;
-                while (i < batchSize && entry != null) {
-                    var bytes = new ByteArrayOutputStream();
-                    zis.transferTo(bytes);
-                    entries[i] = new Entry(entry, bytes.toByteArray());
-                    i++;
-                    if (i < batchSize) {
-                        entry = zis.getNextEntry();
-                    }
-                }
-                for (; i < batchSize; i++) {
-                    entries[i] = null;
-                    labelled[i] = new byte[0];
-                }
-
-                mapEntries(lineMappings, offsets, labelled, entries, futures);
+    }
 
-                for (int j = 0; j < batchSize; j++) {
-                    var entryIn = entries[j];
-                    if (entryIn == null) {
-                        continue;
-                    }
-                    ZipEntry zipEntry = entryIn.entry();
-                    var newEntry = new ZipEntry(zipEntry.getName());
-                    if (zipEntry.getExtra() != null) {
-                        newEntry.setExtra(zipEntry.getExtra());
-                    }
-                    if (zipEntry.getLastAccessTime() != null) {
-                        newEntry.setLastAccessTime(zipEntry.getLastAccessTime());
-                    }
-                    if (zipEntry.getLastModifiedTime() != null) {
-                        newEntry.setLastModifiedTime(zipEntry.getLastModifiedTime());
-                    }
-                    if (zipEntry.getCreationTime() != null) {
-                        newEntry.setCreationTime(zipEntry.getCreationTime());
-                    }
-                    if (zipEntry.getComment() != null) {
-                        newEntry.setComment(zipEntry.getComment());
-                    }
-                    byte[] bytes = labelled[j];
-                    zos.putNextEntry(newEntry);
-                    zos.write(bytes);
-                    zos.closeEntry();
-                }
-            }
-        } catch (IOException e) {
-            throw new UncheckedIOException(e);
+    void checkJars() {
+        if (inputs.isEmpty() || outputs.isEmpty()) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "--input and --output are required");
+        } else if (inputs.size() != outputs.size()) {
+            throw new CommandLine.ParameterException(spec.commandLine(), "Each --input needs a matching --output, but got " + inputs.size() + " inputs and " + outputs.size() + " outputs");
         }
     }
 
-    private void mapEntries(Map<String, Map<Integer, Integer>> mappings, Map<String, List<SingleFileOffset>> offsets, byte[][] labelled, Entry[] entries, Future<?>[] futures) {
-        for (int i = 0; i < batchSize; i++) {
-            var entry = entries[i];
-            if (entry == null) {
-                continue;
-            }
-            var number = i;
-            futures[i] = executorService.submit(() -> {
-                if (entry.entry().getName().endsWith(".class")) {
-                    var name = entry.entry().getName().substring(0, entry.entry().getName().length()-".class".length());
-                    var lines = mappings.get(name);
-                    var patchName = name;
-                    var innerIndex = patchName.indexOf('$');
-                    if (innerIndex != -1) {
-                        patchName = patchName.substring(0, innerIndex);
-                    }
-                    var offset = offsets.get(patchName);
-                    labelled[number] = mapEntry(lines, offset, entry.contents());
-                } else {
-                    labelled[number] = entry.contents();
-                }
-            });
-        }
-        for (int i = 0; i < batchSize; i++) {
-            try {
-                futures[i].get();
-            } catch (InterruptedException | ExecutionException e) {
-                throw new RuntimeException(e);
+    /**
+     * Rejects options that a daemon could not apply to a single request, rather than silently ignoring them.
+     */
+    void checkRequestOptions(CommandLine.ParseResult parsed) {
+        for (var option : PROCESS_OPTIONS) {
+            if (parsed.hasMatchedOption(option)) {
+                throw new CommandLine.ParameterException(spec.commandLine(), option + " cannot be sent to a daemon; give it when starting the daemon with --serve or --serve-stdin instead");
             }
         }
     }
 
-    private byte[] mapEntry(Map<Integer, Integer> lines, List<SingleFileOffset> offsets, byte[] contents) {
-        if (lines == null && offsets == null) {
-            return contents;
+    RemapOptions options() {
+        try {
+            return new RemapOptions(compressionLevel, stored, cacheDirectory, metricsPath, verify);
+        } catch (IllegalArgumentException e) {
+            throw new CommandLine.ParameterException(spec.commandLine(), e.getMessage());
         }
-        var reader = new ClassReader(contents);
-        var writer = new ClassWriter(0);
-        Map<Integer, Integer> finalLines = lines == null ? Map.of() : lines;
-        List<SingleFileOffset> finaOoffsets = offsets == null ? List.of() : offsets;
-        reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
-            @Override
-            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
-                return new MethodVisitor(Opcodes.ASM9, super.visitMethod(access, name, descriptor, signature, exceptions)) {
-                    @Override
-                    public void visitLineNumber(int line, Label start) {
-                        var lineNumber = finalLines.getOrDefault(line, line);
-                        for (var finaOoffsets : finaOoffsets) {
-                            lineNumber = finaOoffsets.remapLineNumber(lineNumber);
-                        }
-                        super.visitLineNumber(lineNumber, start);
-                    }
-                };
-            }
-        }, 0);
-        return writer.toByteArray();
     }
 
-    private record Entry(ZipEntry entry, byte[] contents) {}
-
-    private final ExecutorService executorService = Executors.newFixedThreadPool(batchSize);
-
-    private static Map<Integer, Integer> getLineMap(byte[] extra) {
-        if (extra == null) {
-            return null;
-        }
-        ByteBuffer buffer = ByteBuffer.wrap(extra);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-        while (buffer.hasRemaining() && buffer.getShort() != 0x4646) {
-            var length = buffer.getShort();
-            buffer.position(buffer.position() + length);
-        }
-        if (buffer.remaining() == 0) {
-            return null;
-        }
-        var length = buffer.getShort();
-        if (buffer.get() != (byte) 1) {
-            return null; // we don't know how to deal with other versions
-        }
-        Map<Integer, Integer> map = new HashMap<>();
-        for (int i = 0; i < (length-1)/2; i+=2) {
-            map.put((int) buffer.getShort(), (int) buffer.getShort());
-        }
-        return map;
+    /**
+     * Resolves every path option against a directory, for requests sent by a client with a different working directory.
+     */
+    void resolveAgainst(Path directory) {
+        inputs = inputs.stream().map(directory::resolve).toList();
+        outputs = outputs.stream().map(directory::resolve).toList();
+        vineflowerPaths = vineflowerPaths.stream().map(directory::resolve).toList();
+        patchPaths = patchPaths.stream().map(directory::resolve).toList();
+        lineMaps = lineMaps.stream().map(directory::resolve).toList();
+        cacheDirectory = cacheDirectory == null ? null : directory.resolve(cacheDirectory);
+        metricsPath = metricsPath == null ? null : directory.resolve(metricsPath);
     }
 }
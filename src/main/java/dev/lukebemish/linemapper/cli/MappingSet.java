@@ -0,0 +1,110 @@
+package dev.lukebemish.linemapper.cli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A loaded set of Vineflower output, patches and JST line maps, which may be used to remap any number of jars, including
+ * concurrently. Obtained from {@link LineMapper#load(List, List, List, boolean)}.
+ */
+public final class MappingSet implements Closeable {
+    private final LineMappings mappings;
+    private final List<Path> vineflowerPaths;
+    private final List<Fingerprint> fingerprints;
+    private final long loadWall;
+    private final long loadCpu;
+    private final AtomicBoolean loadReported = new AtomicBoolean();
+
+    private record Fingerprint(Path path, long size, FileTime modified) {
+        static Fingerprint of(Path path) throws IOException {
+            var attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new Fingerprint(path, attributes.size(), attributes.lastModifiedTime());
+        }
+    }
+
+    private MappingSet(LineMappings mappings, List<Path> vineflowerPaths, List<Fingerprint> fingerprints, long loadWall, long loadCpu) {
+        this.mappings = mappings;
+        this.vineflowerPaths = vineflowerPaths;
+        this.fingerprints = fingerprints;
+        this.loadWall = loadWall;
+        this.loadCpu = loadCpu;
+    }
+
+    static MappingSet load(List<Path> vineflowerPaths, List<Path> patchPaths, List<Path> lineMapPaths, boolean lazy, ExecutorService executor) throws IOException {
+        // Files are fingerprinted before they are read, so that a change made while loading is noticed afterwards
+        List<Fingerprint> fingerprints = new ArrayList<>();
+        for (var paths : List.of(vineflowerPaths, patchPaths, lineMapPaths)) {
+            for (var path : paths) {
+                fingerprints.add(Fingerprint.of(path.toAbsolutePath()));
+            }
+        }
+        long wall = System.nanoTime();
+        long cpu = RunMetrics.cpuTime();
+        var mappings = lazy
+            ? LineMappings.index(vineflowerPaths, patchPaths, lineMapPaths, executor)
+            : LineMappings.load(vineflowerPaths, patchPaths, lineMapPaths, executor);
+        var vineflower = vineflowerPaths.stream().map(Path::toAbsolutePath).toList();
+        return new MappingSet(mappings, vineflower, List.copyOf(fingerprints), System.nanoTime() - wall, RunMetrics.cpuTime() - cpu);
+    }
+
+    /**
+     * {@return whether any of the files this set was loaded from has since changed size or modification time, or been
+     * removed}
+     */
+    public boolean isStale() {
+        for (var fingerprint : fingerprints) {
+            try {
+                if (!fingerprint.equals(Fingerprint.of(fingerprint.path()))) {
+                    return true;
+                }
+            } catch (IOException e) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    LineMappings mappings() {
+        return mappings;
+    }
+
+    /**
+     * {@return the Vineflower output this set was loaded from, which {@code --verify} reads decompiled sources from}
+     */
+    List<Path> vineflowerPaths() {
+        return vineflowerPaths;
+    }
+
+    /**
+     * {@return the total size of the files this set was loaded from}
+     */
+    long bytes() {
+        long bytes = 0;
+        for (var fingerprint : fingerprints) {
+            bytes += fingerprint.size();
+        }
+        return bytes;
+    }
+
+    /**
+     * Adds the time taken to load this set to the metrics of the first run that uses it.
+     */
+    void reportLoad(RunMetrics metrics) {
+        if (loadReported.compareAndSet(false, true)) {
+            metrics.add(RunMetrics.Phase.LOAD_MAPPINGS, loadWall, loadCpu);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mappings.close();
+    }
+}
@@ -0,0 +1,251 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Checks where each class's line numbers were mapped to, from the same inflated bytes that are about to be patched, so
+ * that verifying needs no second pass over the jar. Only classes with a mapping are inflated for it; classes whose
+ * source has none are just counted. Everything here may be updated from any thread.
+ * <p>
+ * A line is out of range if it would not fit in a class file, or if it lands past the end of its decompiled source once
+ * that has been through every patch and JST line map. The end is taken from the source's {@code .java} entry in the
+ * Vineflower output, or, if that is missing or empty, from the last line the source's Vineflower map maps anything to.
+ * Lines the map does not cover are only counted as uncovered, since nothing says where they should end up.
+ * <p>
+ * Offsets are non-monotonic for a class if its Vineflower-mapped lines, in order, are not kept in order by its patches
+ * and JST line maps. That is reported, but does not fail verification: a patch that deletes lines ahead of a later hunk
+ * legitimately moves what follows it backwards.
+ */
+final class MappingVerifier {
+    private static final int MAX_REPORTED = 20;
+    private static final ThreadLocal<Lines> LINES = ThreadLocal.withInitial(Lines::new);
+
+    final LongAdder classes = new LongAdder();
+    final LongAdder unmappedClasses = new LongAdder();
+    final LongAdder methods = new LongAdder();
+    final LongAdder remappedMethods = new LongAdder();
+    final LongAdder lines = new LongAdder();
+    final LongAdder uncoveredLines = new LongAdder();
+    final LongAdder outOfRangeLines = new LongAdder();
+    final LongAdder nonMonotonicClasses = new LongAdder();
+
+    private final Queue<String> problems = new ConcurrentLinkedQueue<>();
+    private final Queue<String> unmapped = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger reportedProblems = new AtomicInteger();
+    private final AtomicInteger reportedUnmapped = new AtomicInteger();
+    private final SourceLengths sourceLengths;
+
+    MappingVerifier(SourceLengths sourceLengths) {
+        this.sourceLengths = sourceLengths;
+    }
+
+    /**
+     * Notes a class whose source has no line mappings at all.
+     */
+    void unmapped(String className) {
+        unmappedClasses.increment();
+        if (reportedUnmapped.getAndIncrement() < MAX_REPORTED) {
+            unmapped.add(className);
+        }
+    }
+
+    /**
+     * Checks the line numbers of a class, from its contents before patching.
+     */
+    void check(String className, LineMappings.SourceMapping source, byte[] contents, int length) throws IOException {
+        var collected = LINES.get();
+        collected.size = 0;
+        LineNumberPatcher.forEachLine(contents, length, collected);
+        classes.increment();
+        lines.add(collected.size);
+
+        var remapper = source.remapper();
+        var lineMap = source.lines();
+        int end = end(className, source);
+        int methodCount = 0;
+        int remapped = 0;
+        int currentMethod = -1;
+        boolean methodChanged = false;
+        int uncovered = 0;
+        int outOfRange = 0;
+        for (int i = 0; i < collected.size; i++) {
+            int line = collected.lines[i];
+            if (collected.methods[i] != currentMethod) {
+                methodCount++;
+                if (methodChanged) {
+                    remapped++;
+                }
+                currentMethod = collected.methods[i];
+                methodChanged = false;
+            }
+            int mapped = remapper.map(line);
+            methodChanged |= mapped != line;
+            boolean covered = lineMap != null && lineMap.contains(line);
+            if (lineMap != null && !covered) {
+                uncovered++;
+            }
+            String reason = null;
+            if ((mapped < 1 && line >= 1) || mapped > LineRemapper.MAX_LINE) {
+                reason = "which a class file cannot hold";
+            } else if ((lineMap == null || covered) && end != -1 && mapped > end) {
+                reason = "past the end of its source at line " + end;
+            }
+            if (reason != null && outOfRange++ == 0) {
+                problem(className + ": line " + line + " maps to " + mapped + ", " + reason);
+            }
+        }
+        if (methodChanged) {
+            remapped++;
+        }
+        methods.add(methodCount);
+        remappedMethods.add(remapped);
+        uncoveredLines.add(uncovered);
+        outOfRangeLines.add(outOfRange);
+
+        if (!source.offsets().isEmpty() && collected.size > 1) {
+            checkMonotonic(className, source, collected);
+        }
+    }
+
+    /**
+     * {@return the line that the end of a class's decompiled source ends up on, or {@code -1} if that is not known}
+     */
+    private int end(String className, LineMappings.SourceMapping source) throws IOException {
+        int decompiled = sourceLengths.lines(LineMappings.sourceName(className));
+        if (decompiled > 0) {
+            return LineRemapper.evaluate(LineTable.EMPTY, source.offsets(), decompiled);
+        }
+        return source.lastLine();
+    }
+
+    private void checkMonotonic(String className, LineMappings.SourceMapping source, Lines collected) {
+        int[] decompiled = collected.sorted(collected.size);
+        var lineMap = source.lines() == null ? LineTable.EMPTY : source.lines();
+        for (int i = 0; i < collected.size; i++) {
+            decompiled[i] = lineMap.map(collected.lines[i]);
+        }
+        Arrays.sort(decompiled, 0, collected.size);
+        int previous = decompiled[0];
+        int previousMapped = LineRemapper.evaluate(LineTable.EMPTY, source.offsets(), previous);
+        for (int i = 1; i < collected.size; i++) {
+            int line = decompiled[i];
+            if (line == previous) {
+                continue;
+            }
+            int mapped = LineRemapper.evaluate(LineTable.EMPTY, source.offsets(), line);
+            if (mapped < previousMapped) {
+                nonMonotonicClasses.increment();
+                problem(className + ": offsets map line " + previous + " to " + previousMapped + ", but the later line " + line + " to " + mapped);
+                return;
+            }
+            previous = line;
+            previousMapped = mapped;
+        }
+    }
+
+    private void problem(String message) {
+        if (reportedProblems.getAndIncrement() < MAX_REPORTED) {
+            problems.add(message);
+        }
+    }
+
+    /**
+     * {@return a description of what failed verification, or {@code null} if nothing did}
+     * Only lines mapped out of range fail it; classes without any mapping, lines missing from their source's Vineflower
+     * map and non-monotonic offsets are reported but do not.
+     */
+    String failure() {
+        long outOfRange = outOfRangeLines.sum();
+        if (outOfRange == 0) {
+            return null;
+        }
+        return "Verification failed: " + outOfRange + " lines mapped out of range";
+    }
+
+    void log(Logger logger) {
+        logger.info("Verified {} classes: {} methods, {} with remapped lines; {} lines, {} missing from their source's Vineflower map, {} out of range",
+            classes.sum(), methods.sum(), remappedMethods.sum(), lines.sum(), uncoveredLines.sum(), outOfRangeLines.sum());
+        logger.info("{} classes with non-monotonic offsets, {} classes with no mapping", nonMonotonicClasses.sum(), unmappedClasses.sum());
+        for (var problem : problems) {
+            logger.warn("  {}", problem);
+        }
+        if (!unmapped.isEmpty()) {
+            logger.info("  No mapping for {}{}", String.join(", ", unmapped), unmappedClasses.sum() > unmapped.size() ? ", ..." : "");
+        }
+    }
+
+    void appendJson(StringBuilder json) {
+        json.append("  \"verification\": {\n");
+        json.append("    \"classes\": ").append(classes.sum()).append(",\n");
+        json.append("    \"unmappedClasses\": ").append(unmappedClasses.sum()).append(",\n");
+        json.append("    \"methods\": ").append(methods.sum()).append(",\n");
+        json.append("    \"remappedMethods\": ").append(remappedMethods.sum()).append(",\n");
+        json.append("    \"lines\": ").append(lines.sum()).append(",\n");
+        json.append("    \"uncoveredLines\": ").append(uncoveredLines.sum()).append(",\n");
+        json.append("    \"outOfRangeLines\": ").append(outOfRangeLines.sum()).append(",\n");
+        json.append("    \"nonMonotonicClasses\": ").append(nonMonotonicClasses.sum()).append(",\n");
+        json.append("    \"problems\": [");
+        List<String> quoted = new ArrayList<>();
+        for (var problem : problems) {
+            quoted.add(quote(problem));
+        }
+        json.append(String.join(", ", quoted)).append("]\n");
+        json.append("  },\n");
+    }
+
+    private static String quote(String value) {
+        var quoted = new StringBuilder("\"");
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    /**
+     * The line numbers of one class, reused between classes on the same thread.
+     */
+    private static final class Lines implements LineNumberPatcher.LineVisitor {
+        int[] methods = new int[256];
+        int[] lines = new int[256];
+        int[] sorted = new int[256];
+        int size;
+
+        @Override
+        public void visit(int method, int line) {
+            if (size == lines.length) {
+                methods = Arrays.copyOf(methods, size * 2);
+                lines = Arrays.copyOf(lines, size * 2);
+            }
+            methods[size] = method;
+            lines[size] = line;
+            size++;
+        }
+
+        int[] sorted(int length) {
+            if (sorted.length < length) {
+                sorted = new int[lines.length];
+            }
+            return sorted;
+        }
+    }
+}
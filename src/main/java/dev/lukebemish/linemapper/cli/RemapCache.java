@@ -0,0 +1,271 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * An on-disk cache of rewritten classes, shared between runs. Entries are keyed by a hash of a class's compressed bytes,
+ * its composed line mapping table, and the output compression settings, so a class is only remapped again if one of
+ * those changed.
+ * <p>
+ * The cache directory holds an append-only {@code data} file of compressed class bytes and an append-only {@code index}
+ * file of fixed-size records pointing into it. The index is read into memory when the cache is opened, and the data
+ * file is memory-mapped, so lookups never touch a previous output jar.
+ * <p>
+ * An open cache holds a lock on its index, so that other processes, and other instances in this one, wait for it to be
+ * closed rather than appending to the same files. The data file can only be mapped up to {@link #MAX_DATA_SIZE}; once
+ * a run would grow it past that, the cache is cleared when it is closed, and rebuilt by the runs after it.
+ */
+final class RemapCache implements Closeable {
+    /**
+     * Marks a class whose line numbers are unaffected by its mappings, so it can be copied unchanged.
+     */
+    static final ArchiveWriter.Compressed UNCHANGED = new ArchiveWriter.Compressed(-1, 0, 0, ByteBuffer.allocate(0));
+
+    private static final int MAGIC = 0x4c4d4331;
+    private static final int HEADER_SIZE = 4;
+    private static final int RECORD_SIZE = 32 + 4 + 8 + 8 + 8 + 4;
+    static final long MAX_DATA_SIZE = Integer.MAX_VALUE;
+    private static final Logger LOGGER = LoggerFactory.getLogger(RemapCache.class);
+    // A file lock is held by the whole process, so instances within it also queue up on a permit per directory
+    private static final Map<Path, Semaphore> IN_PROCESS = new ConcurrentHashMap<>();
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final Path directory;
+    private final Semaphore permit;
+    private final FileChannel index;
+    private final FileChannel data;
+    private final ByteBuffer existing;
+    private final Map<Key, Location> locations;
+    private final Set<Key> added = ConcurrentHashMap.newKeySet();
+    private final List<Record> pending = new ArrayList<>();
+    private long dataSize;
+    private boolean full;
+
+    record Key(long a, long b, long c, long d) {}
+
+    private record Location(int method, long crc, long size, long offset, int length) {}
+
+    private record Record(Key key, Location location) {}
+
+    private RemapCache(Path directory, Semaphore permit, FileChannel index, FileChannel data, ByteBuffer existing, Map<Key, Location> locations) throws IOException {
+        this.directory = directory;
+        this.permit = permit;
+        this.index = index;
+        this.data = data;
+        this.existing = existing;
+        this.locations = locations;
+        this.dataSize = data.size();
+    }
+
+    /**
+     * Opens the cache in a directory, waiting for any other process or instance that has it open to close it first.
+     */
+    static RemapCache open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        directory = directory.toRealPath();
+        var permit = IN_PROCESS.computeIfAbsent(directory, k -> new Semaphore(1));
+        try {
+            permit.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the cache at " + directory);
+        }
+        FileChannel index = null;
+        FileChannel data = null;
+        try {
+            index = FileChannel.open(directory.resolve("index"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // Released when the channel is closed
+            index.lock();
+            data = FileChannel.open(directory.resolve("data"), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long dataSize = data.size();
+            if (dataSize > MAX_DATA_SIZE || index.size() > Integer.MAX_VALUE) {
+                LOGGER.warn("Cache at {} is larger than it can be read back; clearing it", directory);
+                index.truncate(0);
+                data.truncate(0);
+                dataSize = 0;
+            }
+            var existing = dataSize == 0
+                ? ByteBuffer.allocate(0)
+                : data.map(FileChannel.MapMode.READ_ONLY, 0, dataSize);
+            return new RemapCache(directory, permit, index, data, existing, readIndex(index, existing.capacity()));
+        } catch (IOException | RuntimeException e) {
+            try {
+                closeAll(index, data);
+            } finally {
+                permit.release();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Computes the cache key for a class entry, given its still-compressed data and how it will be rewritten.
+     */
+    static Key key(ArchiveEntry entry, ByteBuffer compressed, LineRemapper remapper, int method, int level) {
+        var digest = DIGEST.get();
+        digest.reset();
+        var header = ByteBuffer.allocate(32).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(entry.method()).putLong(entry.crc()).putLong(entry.size()).putInt(method).putInt(level);
+        digest.update(header.flip());
+        remapper.update(digest);
+        digest.update(compressed.duplicate());
+        var hash = ByteBuffer.wrap(digest.digest());
+        return new Key(hash.getLong(), hash.getLong(), hash.getLong(), hash.getLong());
+    }
+
+    /**
+     * {@return the cached result for a key, {@link #UNCHANGED} if the class needed no changes, or {@code null} on a miss}
+     */
+    ArchiveWriter.Compressed get(Key key) {
+        var location = locations.get(key);
+        if (location == null) {
+            return null;
+        }
+        if (location.length() < 0) {
+            return UNCHANGED;
+        }
+        var slice = existing.slice((int) location.offset(), location.length());
+        return new ArchiveWriter.Compressed(location.method(), location.crc(), location.size(), slice);
+    }
+
+    /**
+     * Records the result of remapping a class; {@code compressed} may be {@link #UNCHANGED}. This may be called from any
+     * thread.
+     */
+    void put(Key key, ArchiveWriter.Compressed compressed) throws IOException {
+        if (locations.containsKey(key) || !added.add(key)) {
+            return;
+        }
+        if (compressed == UNCHANGED) {
+            synchronized (this) {
+                pending.add(new Record(key, new Location(0, 0, 0, 0, -1)));
+            }
+            return;
+        }
+        var bytes = compressed.data().duplicate();
+        int length = bytes.remaining();
+        synchronized (this) {
+            if (full || dataSize + length > MAX_DATA_SIZE) {
+                full = true;
+                return;
+            }
+            long offset = dataSize;
+            while (bytes.hasRemaining()) {
+                data.write(bytes, offset + (length - bytes.remaining()));
+            }
+            dataSize += length;
+            pending.add(new Record(key, new Location(compressed.method(), compressed.crc(), compressed.size(), offset, length)));
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        try (index; data) {
+            if (full) {
+                // Nothing past the limit could ever be read back, so start over rather than keep a cache that stops hitting
+                LOGGER.warn("Cache at {} reached its size limit of {} bytes; clearing it to be rebuilt by later runs", directory, MAX_DATA_SIZE);
+                index.truncate(0);
+                data.truncate(0);
+                return;
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+            // Data is written before the index records that point at it, so an interrupted run never leaves the
+            // index referring to missing bytes
+            data.force(false);
+            long position = index.size();
+            var buffer = ByteBuffer.allocate((position == 0 ? HEADER_SIZE : 0) + pending.size() * RECORD_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            if (position == 0) {
+                buffer.putInt(MAGIC);
+            }
+            for (var record : pending) {
+                var key = record.key();
+                var location = record.location();
+                buffer.putLong(key.a()).putLong(key.b()).putLong(key.c()).putLong(key.d());
+                buffer.putInt(location.method());
+                buffer.putLong(location.crc());
+                buffer.putLong(location.size());
+                buffer.putLong(location.offset());
+                buffer.putInt(location.length());
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                position += index.write(buffer, position);
+            }
+        } finally {
+            permit.release();
+        }
+    }
+
+    private static void closeAll(FileChannel... channels) throws IOException {
+        for (var channel : channels) {
+            if (channel != null) {
+                channel.close();
+            }
+        }
+    }
+
+    private static Map<Key, Location> readIndex(FileChannel index, long dataSize) throws IOException {
+        long size = index.size();
+        // An interrupted run may leave a partial header or a partial trailing record. They are cut off here, since
+        // records are appended at the end of the index and would otherwise all be misaligned by the leftover bytes.
+        long whole = size < HEADER_SIZE ? 0 : size - (size - HEADER_SIZE) % RECORD_SIZE;
+        if (whole != size) {
+            index.truncate(whole);
+            size = whole;
+        }
+        if (size == 0) {
+            return Map.of();
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("Cache index is too large; delete the cache directory to reset it");
+        }
+        var buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (index.read(buffer, buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        if (buffer.getInt() != MAGIC) {
+            throw new IOException("Unrecognized cache index format; delete the cache directory to reset it");
+        }
+        Map<Key, Location> locations = new HashMap<>();
+        // A record pointing past the data comes from an interrupted run and is skipped
+        while (buffer.remaining() >= RECORD_SIZE) {
+            var key = new Key(buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getLong());
+            var location = new Location(buffer.getInt(), buffer.getLong(), buffer.getLong(), buffer.getLong(), buffer.getInt());
+            if (location.length() < 0 || location.offset() + location.length() <= dataSize) {
+                locations.put(key, location);
+            }
+        }
+        return locations;
+    }
+}
@@ -0,0 +1,27 @@
+package dev.lukebemish.linemapper.cli;
+
+import java.nio.file.Path;
+import java.util.zip.Deflater;
+
+/**
+ * How a single jar is remapped.
+ * @param compressionLevel the deflate level, from {@code 0} to {@code 9} or {@code -1} for the default, for entries
+ *                         whose contents are rewritten
+ * @param stored whether to write every entry uncompressed
+ * @param cacheDirectory a directory in which to cache rewritten classes between runs, or {@code null}
+ * @param metrics a file to write run metrics to as JSON, or {@code null}
+ * @param verify whether to check where every class's lines were mapped to, and fail the run if any look wrong
+ */
+public record RemapOptions(int compressionLevel, boolean stored, Path cacheDirectory, Path metrics, boolean verify) {
+    public static final RemapOptions DEFAULT = new RemapOptions(Deflater.DEFAULT_COMPRESSION, false, null, null, false);
+
+    public RemapOptions {
+        if (compressionLevel < -1 || compressionLevel > 9) {
+            throw new IllegalArgumentException("Invalid compression level " + compressionLevel + "; expected a value from -1 to 9");
+        }
+    }
+
+    public RemapOptions(int compressionLevel, boolean stored, Path cacheDirectory, Path metrics) {
+        this(compressionLevel, stored, cacheDirectory, metrics, false);
+    }
+}
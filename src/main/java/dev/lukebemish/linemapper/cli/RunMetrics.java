@@ -0,0 +1,162 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and per-phase timings for a single run. Everything here may be updated from any thread. Phases that run on
+ * the worker pool are summed over every worker, so their wall time can exceed that of the whole run.
+ */
+final class RunMetrics {
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported() && THREADS.isThreadCpuTimeEnabled();
+
+    enum Phase {
+        LOAD_MAPPINGS("loadMappings"),
+        LOOKUP("lookup"),
+        INFLATE("inflate"),
+        PATCH("patch"),
+        VERIFY("verify"),
+        DEFLATE("deflate"),
+        WAIT("wait"),
+        WRITE("write");
+
+        private final String key;
+
+        Phase(String key) {
+            this.key = key;
+        }
+    }
+
+    private final long start = System.nanoTime();
+    private final LongAdder[] wall = new LongAdder[Phase.values().length];
+    private final LongAdder[] cpu = new LongAdder[Phase.values().length];
+
+    final LongAdder entries = new LongAdder();
+    final LongAdder classesRewritten = new LongAdder();
+    final LongAdder classesPassedThrough = new LongAdder();
+    final LongAdder lookups = new LongAdder();
+    /**
+     * Lookups for classes whose source has no line mappings at all.
+     */
+    final LongAdder lookupMisses = new LongAdder();
+    final LongAdder cacheHits = new LongAdder();
+    private final LongAccumulator peakQueueDepth = new LongAccumulator(Math::max, 0);
+    /**
+     * The results of {@code --verify}, or {@code null} if the run is not verified.
+     */
+    final MappingVerifier verification;
+
+    private long wallTime;
+    private long inputBytes;
+    private long mappingBytes;
+    private long outputBytes;
+    private long mappingsComposed;
+
+    RunMetrics() {
+        this(null);
+    }
+
+    RunMetrics(MappingVerifier verification) {
+        this.verification = verification;
+        for (int i = 0; i < wall.length; i++) {
+            wall[i] = new LongAdder();
+            cpu[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * {@return the CPU time of the current thread, or {@code 0} if the JVM cannot measure it}
+     */
+    static long cpuTime() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    /**
+     * Adds the time since {@code wallStart} and {@code cpuStart}, as given by {@link System#nanoTime()} and
+     * {@link #cpuTime()} on this thread, to a phase.
+     */
+    void record(Phase phase, long wallStart, long cpuStart) {
+        wall[phase.ordinal()].add(System.nanoTime() - wallStart);
+        cpu[phase.ordinal()].add(cpuTime() - cpuStart);
+    }
+
+    void add(Phase phase, long wallNanos, long cpuNanos) {
+        wall[phase.ordinal()].add(wallNanos);
+        cpu[phase.ordinal()].add(cpuNanos);
+    }
+
+    void queueDepth(int depth) {
+        peakQueueDepth.accumulate(depth);
+    }
+
+    /**
+     * Records the totals that are only known once the output has been written.
+     */
+    void finish(long inputBytes, long mappingBytes, long outputBytes, long mappingsComposed) {
+        this.wallTime = System.nanoTime() - start;
+        this.inputBytes = inputBytes;
+        this.mappingBytes = mappingBytes;
+        this.outputBytes = outputBytes;
+        this.mappingsComposed = mappingsComposed;
+    }
+
+    void log(Logger logger) {
+        logger.info("Processed {} entries in {} ms: {} classes rewritten, {} passed through", entries.sum(), millis(wallTime), classesRewritten.sum(), classesPassedThrough.sum());
+        logger.info("Read {} bytes of input and {} bytes of mappings, wrote {} bytes", inputBytes, mappingBytes, outputBytes);
+        logger.info("{} mapping lookups, {} without a mapping, {} mappings composed; {} cache hits; peak queue depth {}", lookups.sum(), lookupMisses.sum(), mappingsComposed, cacheHits.sum(), peakQueueDepth.get());
+        for (var phase : Phase.values()) {
+            logger.info("  {}: {} ms wall, {} ms CPU", phase.key, millis(wall[phase.ordinal()].sum()), millis(cpu[phase.ordinal()].sum()));
+        }
+        if (verification != null) {
+            verification.log(logger);
+        }
+    }
+
+    void writeJson(Path path) throws IOException {
+        var json = new StringBuilder();
+        json.append("{\n");
+        json.append("  \"wallNanos\": ").append(wallTime).append(",\n");
+        json.append("  \"entries\": ").append(entries.sum()).append(",\n");
+        json.append("  \"classesRewritten\": ").append(classesRewritten.sum()).append(",\n");
+        json.append("  \"classesPassedThrough\": ").append(classesPassedThrough.sum()).append(",\n");
+        json.append("  \"inputBytes\": ").append(inputBytes).append(",\n");
+        json.append("  \"mappingBytes\": ").append(mappingBytes).append(",\n");
+        json.append("  \"outputBytes\": ").append(outputBytes).append(",\n");
+        json.append("  \"mappingLookups\": ").append(lookups.sum()).append(",\n");
+        json.append("  \"mappingMisses\": ").append(lookupMisses.sum()).append(",\n");
+        json.append("  \"mappingsComposed\": ").append(mappingsComposed).append(",\n");
+        json.append("  \"cacheHits\": ").append(cacheHits.sum()).append(",\n");
+        json.append("  \"peakQueueDepth\": ").append(peakQueueDepth.get()).append(",\n");
+        if (verification != null) {
+            verification.appendJson(json);
+        }
+        json.append("  \"phases\": {\n");
+        var phases = Phase.values();
+        for (int i = 0; i < phases.length; i++) {
+            json.append("    \"").append(phases[i].key).append("\": {\"wallNanos\": ").append(wall[i].sum())
+                .append(", \"cpuNanos\": ").append(cpu[i].sum()).append('}')
+                .append(i + 1 < phases.length ? ",\n" : "\n");
+        }
+        json.append("  }\n");
+        json.append("}\n");
+        var parent = path.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Files.writeString(path, json, StandardCharsets.UTF_8);
+    }
+
+    private static String millis(long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1_000_000.0);
+    }
+}
@@ -1,62 +1,84 @@
 package dev.lukebemish.linemapper.cli;
 
-import org.jetbrains.annotations.NotNull;
-
-import java.util.ArrayList;
-import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 
 class SingleFileOffset {
-    public static final SingleFileOffset EMPTY = new SingleFileOffset(List.of());
-    private static final Pattern HUNK_OFFSET = Pattern.compile("@@ -(\\d+),(\\d+) \\+([_\\d]+),(\\d+) @@");
+    public static final SingleFileOffset EMPTY = new SingleFileOffset(new LineTable.Builder(0));
+    private static final byte[] HUNK_PREFIX = {'@', '@', ' ', '-'};
 
-    SingleFileOffset(List<Offset> offsets) {
-        this.offsets = offsets;
-    }
+    // thresholds[i] is the largest initial line among the first i+1 offsets, so the first offset past a line can be
+    // found by binary search even if the offsets were not added in order
+    private final int[] thresholds;
+    private final int[] deltas;
 
-    record Offset(int initial, int eventual) implements Comparable<Offset> {
-        @Override
-        public int compareTo(@NotNull SingleFileOffset.Offset o) {
-            return Integer.compare(initial, o.initial);
+    /**
+     * Creates an offset from pairs of initial and eventual line numbers, in the order they were added.
+     */
+    SingleFileOffset(LineTable.Builder offsets) {
+        this.thresholds = new int[offsets.size()];
+        this.deltas = new int[offsets.size()];
+        int max = Integer.MIN_VALUE;
+        for (int i = 0; i < offsets.size(); i++) {
+            max = Math.max(max, offsets.key(i));
+            thresholds[i] = max;
+            deltas[i] = offsets.value(i) - offsets.key(i);
         }
     }
 
-    private final List<Offset> offsets;
+    /**
+     * {@return the lines at which the offset applied to a line changes, in ascending order, possibly repeated}
+     */
+    int[] thresholds() {
+        return thresholds;
+    }
 
     public int remapLineNumber(int lineNumber) {
-        int totalOffset = 0;
-        for (Offset offset : offsets) {
-            if (lineNumber < offset.initial) {
-                return lineNumber + totalOffset;
+        int low = 0;
+        int high = thresholds.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (thresholds[mid] <= lineNumber) {
+                low = mid + 1;
+            } else {
+                high = mid;
             }
-            totalOffset = offset.eventual - offset.initial;
         }
-        return lineNumber + totalOffset;
+        return low == 0 ? lineNumber : lineNumber + deltas[low - 1];
     }
 
-    public static SingleFileOffset fromPatchLines(String name, List<String> lines) {
+    /**
+     * Reads the offsets a unified diff introduces from the first {@code length} bytes of {@code patch}, without decoding
+     * it to text.
+     */
+    public static SingleFileOffset fromPatch(String name, byte[] patch, int length) {
         int initialLineNumber = 0;
         int eventualLineNumber = 0;
         int totalPatchDelta = 0;
         boolean justDidAddition = false;
         boolean justDidSubtraction = false;
-        List<Offset> offsets = new ArrayList<>();
-        for (String line : lines) {
-            if (line.isEmpty()) {
+        var offsets = new LineTable.Builder();
+        int[] hunk = new int[3];
+        int lineEnd;
+        for (int lineStart = 0; lineStart < length; lineStart = nextLine(patch, lineEnd, length)) {
+            lineEnd = lineStart;
+            while (lineEnd < length && patch[lineEnd] != '\n' && patch[lineEnd] != '\r') {
+                lineEnd++;
+            }
+            if (lineEnd == lineStart) {
                 continue;
             }
             initialLineNumber++;
             eventualLineNumber++;
-            switch (line.charAt(0)) {
+            switch (patch[lineStart]) {
                 case '@' -> {
-                    Matcher matcher = HUNK_OFFSET.matcher(line);
-                    if (!matcher.find()) {
+                    if (!findHunkHeader(patch, lineStart, lineEnd, hunk)) {
+                        var line = new String(patch, lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
                         throw new IllegalArgumentException(String.format("Invalid patch line in '%s': '%s'", name, line));
                     }
-                    var initialStart = Integer.parseInt(matcher.group(1)) - 1;
-                    var initialLength = Integer.parseInt(matcher.group(2));
-                    var eventualLength = Integer.parseInt(matcher.group(4));
+                    var initialStart = hunk[0] - 1;
+                    var initialLength = hunk[1];
+                    var eventualLength = hunk[2];
                     initialLineNumber = initialStart;
                     eventualLineNumber = initialStart + totalPatchDelta;
                     totalPatchDelta += eventualLength - initialLength;
@@ -73,7 +95,7 @@ public static SingleFileOffset fromPatchLines(String name, List<String> lines) {
                 }
                 default -> {
                     if (justDidAddition || justDidSubtraction) {
-                        offsets.add(new Offset(initialLineNumber, eventualLineNumber));
+                        offsets.add(initialLineNumber, eventualLineNumber);
                     }
                     justDidAddition = false;
                     justDidSubtraction = false;
@@ -82,4 +104,65 @@ public static SingleFileOffset fromPatchLines(String name, List<String> lines) {
         }
         return new SingleFileOffset(offsets);
     }
+
+    private static int nextLine(byte[] patch, int lineEnd, int length) {
+        if (lineEnd < length && patch[lineEnd] == '\r' && lineEnd + 1 < length && patch[lineEnd + 1] == '\n') {
+            return lineEnd + 2;
+        }
+        return lineEnd + 1;
+    }
+
+    /**
+     * Finds a hunk header of the form {@code @@ -a,b +c,d @@} anywhere in a line, storing {@code a}, {@code b} and
+     * {@code d} in {@code hunk}.
+     */
+    private static boolean findHunkHeader(byte[] line, int start, int end, int[] hunk) {
+        for (int position = start; position + HUNK_PREFIX.length <= end; position++) {
+            if (matchHunkHeader(line, position, end, hunk)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchHunkHeader(byte[] line, int position, int end, int[] hunk) {
+        if (!Arrays.equals(line, position, position + HUNK_PREFIX.length, HUNK_PREFIX, 0, HUNK_PREFIX.length)) {
+            return false;
+        }
+        position += HUNK_PREFIX.length;
+        int[] cursor = {position};
+        if ((hunk[0] = readNumber(line, cursor, end)) < 0 || !expect(line, cursor, end, ',')
+            || (hunk[1] = readNumber(line, cursor, end)) < 0 || !expect(line, cursor, end, ' ') || !expect(line, cursor, end, '+')) {
+            return false;
+        }
+        // The new start is unused, but may contain underscores
+        int digits = cursor[0];
+        while (cursor[0] < end && (line[cursor[0]] == '_' || (line[cursor[0]] >= '0' && line[cursor[0]] <= '9'))) {
+            cursor[0]++;
+        }
+        return cursor[0] > digits && expect(line, cursor, end, ',')
+            && (hunk[2] = readNumber(line, cursor, end)) >= 0
+            && expect(line, cursor, end, ' ') && expect(line, cursor, end, '@') && expect(line, cursor, end, '@');
+    }
+
+    private static int readNumber(byte[] line, int[] cursor, int end) {
+        int start = cursor[0];
+        int value = 0;
+        while (cursor[0] < end && line[cursor[0]] >= '0' && line[cursor[0]] <= '9') {
+            if (value > (Integer.MAX_VALUE - 9) / 10) {
+                throw new NumberFormatException("Line number too large in patch hunk header");
+            }
+            value = value * 10 + (line[cursor[0]] - '0');
+            cursor[0]++;
+        }
+        return cursor[0] == start ? -1 : value;
+    }
+
+    private static boolean expect(byte[] line, int[] cursor, int end, char expected) {
+        if (cursor[0] < end && line[cursor[0]] == expected) {
+            cursor[0]++;
+            return true;
+        }
+        return false;
+    }
 }
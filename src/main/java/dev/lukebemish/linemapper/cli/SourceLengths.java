@@ -0,0 +1,124 @@
+package dev.lukebemish.linemapper.cli;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * How many lines each decompiled source in Vineflower output has, for {@code --verify}. Sources are only inflated and
+ * counted when first asked for; where several archives hold the same source, the last one given wins, as it does for
+ * line maps.
+ */
+final class SourceLengths implements Closeable {
+    private final List<ArchiveReader> archives;
+    private final Map<String, Located> sources;
+    private final Map<String, Integer> lengths = new ConcurrentHashMap<>();
+
+    private record Located(ArchiveReader archive, ArchiveEntry entry) {}
+
+    private SourceLengths(List<ArchiveReader> archives, Map<String, Located> sources) {
+        this.archives = archives;
+        this.sources = sources;
+    }
+
+    static SourceLengths open(List<Path> vineflowerPaths) throws IOException {
+        List<ArchiveReader> archives = new ArrayList<>();
+        try {
+            Map<String, Located> sources = new HashMap<>();
+            for (var path : vineflowerPaths) {
+                var archive = ArchiveReader.open(path.toAbsolutePath());
+                archives.add(archive);
+                for (var entry : archive.entries()) {
+                    var name = entry.name();
+                    if (name.endsWith(".java")) {
+                        sources.put(name.substring(0, name.length() - ".java".length()), new Located(archive, entry));
+                    }
+                }
+            }
+            return new SourceLengths(List.copyOf(archives), sources);
+        } catch (IOException | RuntimeException e) {
+            for (var archive : archives) {
+                archive.close();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * {@return how many lines the decompiled source has, or {@code -1} if there is no such source}
+     */
+    int lines(String source) throws IOException {
+        var known = lengths.get(source);
+        if (known != null) {
+            return known;
+        }
+        var located = sources.get(source);
+        int count = located == null ? -1 : count(located.entry(), located.archive().localHeader(located.entry()).data());
+        // Counted outside the map, so that other sources are never held up behind the inflating
+        var previous = lengths.putIfAbsent(source, count);
+        return previous == null ? count : previous;
+    }
+
+    /**
+     * Counts the lines of an entry a chunk at a time, rather than with {@link ArchiveReader#inflate}, whose buffer is
+     * shared with the class being verified on the same thread.
+     */
+    private static int count(ArchiveEntry entry, ByteBuffer data) throws IOException {
+        int lines = 0;
+        byte last = '\n';
+        switch (entry.method()) {
+            case ArchiveEntry.STORED -> {
+                for (int i = data.position(); i < data.limit(); i++) {
+                    last = data.get(i);
+                    if (last == '\n') {
+                        lines++;
+                    }
+                }
+            }
+            case ArchiveEntry.DEFLATED -> {
+                var inflater = new Inflater(true);
+                try {
+                    inflater.setInput(data.duplicate());
+                    var chunk = new byte[8192];
+                    while (true) {
+                        int count = inflater.inflate(chunk);
+                        if (count == 0) {
+                            if (inflater.finished() || inflater.needsInput() || inflater.needsDictionary()) {
+                                break;
+                            }
+                            continue;
+                        }
+                        for (int i = 0; i < count; i++) {
+                            if (chunk[i] == '\n') {
+                                lines++;
+                            }
+                        }
+                        last = chunk[count - 1];
+                    }
+                } catch (DataFormatException e) {
+                    throw new ZipException("Invalid compressed data for entry `" + entry.name() + "`: " + e.getMessage());
+                } finally {
+                    inflater.end();
+                }
+            }
+            default -> throw new ZipException("Unsupported compression method " + entry.method() + " for entry `" + entry.name() + "`");
+        }
+        return last == '\n' ? lines : lines + 1;
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (var archive : archives) {
+            archive.close();
+        }
+    }
+}
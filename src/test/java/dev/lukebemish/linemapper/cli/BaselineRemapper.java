@@ -0,0 +1,261 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * The remapping this tool did before it had its own archive reader, line tables or composed remappers, kept as it was
+ * so that {@link LineMapperTest} compares against code that shares nothing with what it tests. The only change is that
+ * nested classes use their outermost class's Vineflower map, as they have done since remappers were composed per
+ * source.
+ */
+final class BaselineRemapper {
+    private final Map<String, Map<Integer, Integer>> lineMappings = new HashMap<>();
+    private final Map<String, List<Offsets>> offsets = new HashMap<>();
+
+    BaselineRemapper(List<Path> vineflowerPaths, List<Path> patchPaths, List<Path> lineMaps) throws IOException {
+        for (var vineflower : vineflowerPaths) {
+            try (var is = Files.newInputStream(vineflower);
+                 var zis = new ZipInputStream(is)) {
+                ZipEntry entry;
+                while ((entry = zis.getNextEntry()) != null) {
+                    if (entry.getName().endsWith(".java")) {
+                        Map<Integer, Integer> lines = getLineMap(entry.getExtra());
+                        if (lines != null) {
+                            lineMappings.put(entry.getName().substring(0, entry.getName().length()-5), lines);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (var patch : patchPaths) {
+            try (var is = Files.newInputStream(patch);
+                 var zis = new ZipInputStream(is)) {
+                ZipEntry entry;
+                while ((entry = zis.getNextEntry()) != null) {
+                    if (entry.getName().endsWith(".java.patch")) {
+                        var bytes = zis.readAllBytes();
+                        var lines = new String(bytes, StandardCharsets.UTF_8).lines().toList();
+                        var name = entry.getName().substring(0, entry.getName().length()-".java.patch".length());
+                        offsets.computeIfAbsent(name, k -> new ArrayList<>()).add(Offsets.fromPatchLines(entry.getName(), lines));
+                    }
+                }
+            }
+        }
+
+        for (var lineMap : lineMaps) {
+            var lines = Files.readAllLines(lineMap, StandardCharsets.UTF_8);
+            String source = null;
+            List<Offsets.Offset> singleSourceOffsets = new ArrayList<>();
+            for (var line : lines) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (line.startsWith("source ")) {
+                    if (source != null && !singleSourceOffsets.isEmpty()) {
+                        offsets.computeIfAbsent(source, k -> new ArrayList<>()).add(new Offsets(List.copyOf(singleSourceOffsets)));
+                        singleSourceOffsets.clear();
+                    }
+                    source = line.substring("source ".length()).trim();
+                    continue;
+                }
+                var parts = line.split("->");
+                if (parts.length != 2) {
+                    throw new RuntimeException("Unknown syntax in line mapping file: `"+line+"`");
+                }
+                int original;
+                int transformed;
+                try {
+                    original = Integer.parseInt(parts[0].trim());
+                    transformed = Integer.parseInt(parts[1].trim());
+                } catch (NumberFormatException e) {
+                    throw new RuntimeException("Failed to parse line mapping: `"+line+"`", e);
+                }
+                if (source == null) {
+                    throw new RuntimeException("No source specified for line mapping: `"+line+"`");
+                }
+                singleSourceOffsets.add(new Offsets.Offset(original, transformed));
+            }
+            if (source != null && !singleSourceOffsets.isEmpty()) {
+                offsets.computeIfAbsent(source, k -> new ArrayList<>()).add(new Offsets(singleSourceOffsets));
+            }
+        }
+    }
+
+    /**
+     * {@return the name and contents of every entry of a jar, in order, with the line numbers of its classes remapped}
+     */
+    Map<String, byte[]> remap(Path input) throws IOException {
+        Map<String, byte[]> remapped = new LinkedHashMap<>();
+        try (var is = Files.newInputStream(input);
+             var zis = new ZipInputStream(is)) {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                var bytes = new ByteArrayOutputStream();
+                zis.transferTo(bytes);
+                if (entry.getName().endsWith(".class")) {
+                    var name = entry.getName().substring(0, entry.getName().length()-".class".length());
+                    var patchName = name;
+                    var innerIndex = patchName.indexOf('$');
+                    if (innerIndex != -1) {
+                        patchName = patchName.substring(0, innerIndex);
+                    }
+                    // Originally looked up by the nested class's own name, which Vineflower never writes a map for
+                    var lines = lineMappings.get(patchName);
+                    var offset = offsets.get(patchName);
+                    remapped.put(entry.getName(), mapEntry(lines, offset, bytes.toByteArray()));
+                } else {
+                    remapped.put(entry.getName(), bytes.toByteArray());
+                }
+            }
+        }
+        return remapped;
+    }
+
+    private static byte[] mapEntry(Map<Integer, Integer> lines, List<Offsets> offsets, byte[] contents) {
+        if (lines == null && offsets == null) {
+            return contents;
+        }
+        var reader = new ClassReader(contents);
+        var writer = new ClassWriter(0);
+        Map<Integer, Integer> finalLines = lines == null ? Map.of() : lines;
+        List<Offsets> finaOoffsets = offsets == null ? List.of() : offsets;
+        reader.accept(new ClassVisitor(Opcodes.ASM9, writer) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9, super.visitMethod(access, name, descriptor, signature, exceptions)) {
+                    @Override
+                    public void visitLineNumber(int line, Label start) {
+                        var lineNumber = finalLines.getOrDefault(line, line);
+                        for (var finaOoffsets : finaOoffsets) {
+                            lineNumber = finaOoffsets.remapLineNumber(lineNumber);
+                        }
+                        super.visitLineNumber(lineNumber, start);
+                    }
+                };
+            }
+        }, 0);
+        return writer.toByteArray();
+    }
+
+    private static Map<Integer, Integer> getLineMap(byte[] extra) {
+        if (extra == null) {
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(extra);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining() && buffer.getShort() != 0x4646) {
+            var length = buffer.getShort();
+            buffer.position(buffer.position() + length);
+        }
+        if (buffer.remaining() == 0) {
+            return null;
+        }
+        var length = buffer.getShort();
+        if (buffer.get() != (byte) 1) {
+            return null; // we don't know how to deal with other versions
+        }
+        Map<Integer, Integer> map = new HashMap<>();
+        for (int i = 0; i < (length-1)/2; i+=2) {
+            map.put((int) buffer.getShort(), (int) buffer.getShort());
+        }
+        return map;
+    }
+
+    /**
+     * The original {@link SingleFileOffset}, which walked its offsets in order and parsed patches line by line.
+     */
+    private static final class Offsets {
+        private static final Pattern HUNK_OFFSET = Pattern.compile("@@ -(\\d+),(\\d+) \\+([_\\d]+),(\\d+) @@");
+
+        private final List<Offset> offsets;
+
+        Offsets(List<Offset> offsets) {
+            this.offsets = offsets;
+        }
+
+        record Offset(int initial, int eventual) {}
+
+        int remapLineNumber(int lineNumber) {
+            int totalOffset = 0;
+            for (Offset offset : offsets) {
+                if (lineNumber < offset.initial) {
+                    return lineNumber + totalOffset;
+                }
+                totalOffset = offset.eventual - offset.initial;
+            }
+            return lineNumber + totalOffset;
+        }
+
+        static Offsets fromPatchLines(String name, List<String> lines) {
+            int initialLineNumber = 0;
+            int eventualLineNumber = 0;
+            int totalPatchDelta = 0;
+            boolean justDidAddition = false;
+            boolean justDidSubtraction = false;
+            List<Offset> offsets = new ArrayList<>();
+            for (String line : lines) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                initialLineNumber++;
+                eventualLineNumber++;
+                switch (line.charAt(0)) {
+                    case '@' -> {
+                        Matcher matcher = HUNK_OFFSET.matcher(line);
+                        if (!matcher.find()) {
+                            throw new IllegalArgumentException(String.format("Invalid patch line in '%s': '%s'", name, line));
+                        }
+                        var initialStart = Integer.parseInt(matcher.group(1)) - 1;
+                        var initialLength = Integer.parseInt(matcher.group(2));
+                        var eventualLength = Integer.parseInt(matcher.group(4));
+                        initialLineNumber = initialStart;
+                        eventualLineNumber = initialStart + totalPatchDelta;
+                        totalPatchDelta += eventualLength - initialLength;
+                    }
+                    case '+' -> {
+                        eventualLineNumber++;
+                        justDidAddition = true;
+                        justDidSubtraction = false;
+                    }
+                    case '-' -> {
+                        eventualLineNumber--;
+                        justDidSubtraction = true;
+                        justDidAddition = false;
+                    }
+                    default -> {
+                        if (justDidAddition || justDidSubtraction) {
+                            offsets.add(new Offset(initialLineNumber, eventualLineNumber));
+                        }
+                        justDidAddition = false;
+                        justDidSubtraction = false;
+                    }
+                }
+            }
+            return new Offsets(offsets);
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class DaemonTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void refusesToReplaceARegularFile() throws IOException {
+        var file = directory.resolve("daemon.sock");
+        Files.writeString(file, "not a socket");
+        try (var mapper = new LineMapper(1, 1)) {
+            assertThrows(IOException.class, () -> new Daemon(mapper).serve(file));
+        }
+        assertEquals("not a socket", Files.readString(file));
+    }
+}
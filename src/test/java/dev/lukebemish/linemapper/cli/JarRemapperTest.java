@@ -0,0 +1,69 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class JarRemapperTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    @Timeout(30)
+    void failsWhenTheReaderFails() throws IOException {
+        var input = directory.resolve("input.jar");
+        try (var out = new ZipOutputStream(Files.newOutputStream(input))) {
+            for (int i = 0; i < 16; i++) {
+                out.putNextEntry(new ZipEntry("resource" + i + ".txt"));
+                out.write(("resource " + i).getBytes(StandardCharsets.UTF_8));
+                out.closeEntry();
+            }
+        }
+        // Like a daemon's pool that starts shutting down partway through a run
+        var executor = new RejectingExecutor(3);
+        try {
+            var remapper = new JarRemapper(executor, 4, RemapOptions.DEFAULT, new RunMetrics(), Thread.ofPlatform().daemon().factory());
+            var mappings = new LineMappings(Map.of(), Map.of());
+            var thrown = assertThrows(RejectedExecutionException.class, () -> remapper.run(mappings, null, input, directory.resolve("output.jar")));
+            assertEquals(RejectingExecutor.MESSAGE, thrown.getMessage());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static final class RejectingExecutor extends ThreadPoolExecutor {
+        static final String MESSAGE = "Shutting down";
+
+        private final int accepted;
+        private final AtomicInteger submitted = new AtomicInteger();
+
+        RejectingExecutor(int accepted) {
+            super(2, 2, 0, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+            this.accepted = accepted;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (submitted.incrementAndGet() > accepted) {
+                throw new RejectedExecutionException(MESSAGE);
+            }
+            super.execute(command);
+        }
+    }
+}
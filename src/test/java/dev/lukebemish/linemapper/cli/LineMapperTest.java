@@ -0,0 +1,236 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Compares what {@link LineMapper} writes against {@link BaselineRemapper}, the original remap of the same jar: read
+ * with {@link ZipInputStream}, each class rewritten by ASM with its lines mapped one layer at a time, and everything
+ * else copied as it is.
+ */
+class LineMapperTest {
+    private static final int METHODS = 6;
+    private static final int LINES_PER_METHOD = 10;
+
+    @TempDir
+    Path directory;
+
+    private Path input;
+    private Path vineflower;
+    private Path patches;
+    private Path lineMap;
+
+    @BeforeEach
+    void writeInputs() throws IOException {
+        input = directory.resolve("input.jar");
+        vineflower = directory.resolve("vineflower.zip");
+        patches = directory.resolve("patches.zip");
+        lineMap = directory.resolve("lines.txt");
+        int lines = METHODS * LINES_PER_METHOD;
+        try (var out = new ZipOutputStream(Files.newOutputStream(input))) {
+            put(out, "META-INF/", new byte[0], ZipEntry.STORED);
+            put(out, "META-INF/MANIFEST.MF", "Manifest-Version: 1.0\n".getBytes(StandardCharsets.UTF_8), ZipEntry.DEFLATED);
+            put(out, "pkg/Mapped.class", Fixtures.classFile("pkg/Mapped", METHODS, LINES_PER_METHOD), ZipEntry.DEFLATED);
+            put(out, "pkg/Mapped$Inner.class", Fixtures.classFile("pkg/Mapped$Inner", 1, LINES_PER_METHOD), ZipEntry.DEFLATED);
+            put(out, "pkg/Patched.class", Fixtures.classFile("pkg/Patched", METHODS, LINES_PER_METHOD), ZipEntry.STORED);
+            put(out, "pkg/Unmapped.class", Fixtures.classFile("pkg/Unmapped", 2, LINES_PER_METHOD), ZipEntry.DEFLATED);
+            put(out, "data/stored.bin", new byte[] {1, 2, 3, 4}, ZipEntry.STORED);
+            put(out, "data/resource.txt", "resource\n".repeat(100).getBytes(StandardCharsets.UTF_8), ZipEntry.DEFLATED);
+        }
+        writeVineflower(lines * 2);
+        try (var out = new ZipOutputStream(Files.newOutputStream(patches))) {
+            put(out, "pkg/Mapped.java.patch", Fixtures.patch("pkg/Mapped", lines / Fixtures.LINE_SPACING), ZipEntry.DEFLATED);
+            put(out, "pkg/Patched.java.patch", Fixtures.patch("pkg/Patched", lines / Fixtures.LINE_SPACING), ZipEntry.DEFLATED);
+        }
+        Files.writeString(lineMap, "source pkg/Mapped\n12 -> 14\n40 -> 43\n");
+    }
+
+    @Test
+    void matchesBaseline() throws IOException {
+        assertMatchesBaseline(remap(RemapOptions.DEFAULT, false), false);
+    }
+
+    @Test
+    void matchesBaselineWithLazyMappings() throws IOException {
+        assertMatchesBaseline(remap(RemapOptions.DEFAULT, true), false);
+    }
+
+    @Test
+    void matchesBaselineStored() throws IOException {
+        assertMatchesBaseline(remap(new RemapOptions(-1, true, null, null), false), true);
+    }
+
+    @Test
+    void matchesBaselineFromCache() throws IOException {
+        var options = new RemapOptions(-1, false, directory.resolve("cache"), null);
+        assertMatchesBaseline(remap(options, false), false);
+        // The second run is served from what the first one cached
+        assertMatchesBaseline(remap(options, false), false);
+    }
+
+    @Test
+    void matchesBaselineVerified() throws IOException {
+        assertMatchesBaseline(remap(new RemapOptions(-1, false, null, null, true), false), false);
+    }
+
+    @Test
+    void matchesBaselineVerifiedWithNonMonotonicOffsets() throws IOException {
+        // Line 40 now lands ahead of line 39, as it would after a patch that deletes lines ahead of a later hunk
+        Files.writeString(lineMap, "source pkg/Mapped\n12 -> 14\n40 -> 30\n");
+        assertMatchesBaseline(remap(new RemapOptions(-1, false, null, null, true), false), false);
+    }
+
+    @Test
+    void failsVerificationPastTheEndOfTheSource() throws IOException {
+        writeVineflower(5);
+        var output = directory.resolve("output.jar");
+        assertThrows(IllegalStateException.class, () -> remap(new RemapOptions(-1, false, null, null, true), false));
+        assertFalse(Files.exists(output));
+    }
+
+    @Test
+    void matchesBaselineForSeveralJars() throws IOException {
+        var outputs = List.of(directory.resolve("first.jar"), directory.resolve("second.jar"));
+        try (var mapper = new LineMapper(4, 4);
+             var mappings = mapper.load(List.of(vineflower), List.of(patches), List.of(lineMap), false)) {
+            mapper.remap(mappings, List.of(input, input), outputs, RemapOptions.DEFAULT);
+        }
+        for (var output : outputs) {
+            assertMatchesBaseline(output, false);
+        }
+    }
+
+    /**
+     * Writes Vineflower output for {@code pkg/Mapped}, whose decompiled source is {@code sourceLines} lines long.
+     */
+    private void writeVineflower(int sourceLines) throws IOException {
+        try (var out = new ZipOutputStream(Files.newOutputStream(vineflower))) {
+            var entry = new ZipEntry("pkg/Mapped.java");
+            entry.setExtra(Fixtures.vineflowerExtra(METHODS * LINES_PER_METHOD));
+            out.putNextEntry(entry);
+            out.write("// decompiled\n".repeat(sourceLines).getBytes(StandardCharsets.UTF_8));
+            out.closeEntry();
+        }
+    }
+
+    private Path remap(RemapOptions options, boolean lazy) throws IOException {
+        var output = directory.resolve("output.jar");
+        try (var mapper = new LineMapper(4, 4);
+             var mappings = mapper.load(List.of(vineflower), List.of(patches), List.of(lineMap), lazy)) {
+            mapper.remap(mappings, input, output, options);
+        }
+        return output;
+    }
+
+    private void assertMatchesBaseline(Path output, boolean stored) throws IOException {
+        var expected = new BaselineRemapper(List.of(vineflower), List.of(patches), List.of(lineMap)).remap(input);
+        var actual = read(output);
+        assertEquals(List.copyOf(expected.keySet()), List.copyOf(actual.keySet()));
+        for (var entry : expected.entrySet()) {
+            var name = entry.getKey();
+            if (name.endsWith(".class")) {
+                assertArrayEquals(normalize(entry.getValue()), normalize(actual.get(name)), name);
+            } else {
+                assertArrayEquals(entry.getValue(), actual.get(name), name);
+            }
+        }
+        // The remap must actually change something, or the comparison above proves nothing
+        assertNotEquals(lineNumbers(read(input).get("pkg/Mapped.class")), lineNumbers(actual.get("pkg/Mapped.class")));
+
+        // The central directory must agree with the local headers read above
+        try (var zip = new ZipFile(output.toFile())) {
+            List<String> names = new ArrayList<>();
+            var entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                var entry = entries.nextElement();
+                names.add(entry.getName());
+                try (var in = zip.getInputStream(entry)) {
+                    assertArrayEquals(actual.get(entry.getName()), in.readAllBytes(), entry.getName());
+                }
+                if (stored) {
+                    assertEquals(ZipEntry.STORED, entry.getMethod(), entry.getName());
+                }
+            }
+            assertEquals(List.copyOf(actual.keySet()), names);
+        }
+    }
+
+    /**
+     * Rewrites a class through ASM, so that classes which differ only in the layout of their constant pool and
+     * attributes compare equal.
+     */
+    private static byte[] normalize(byte[] contents) {
+        var writer = new ClassWriter(0);
+        new ClassReader(contents).accept(writer, 0);
+        return writer.toByteArray();
+    }
+
+    private static List<Integer> lineNumbers(byte[] contents) {
+        List<Integer> lines = new ArrayList<>();
+        new ClassReader(contents).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitLineNumber(int line, Label start) {
+                        lines.add(line);
+                    }
+                };
+            }
+        }, 0);
+        return lines;
+    }
+
+    private static Map<String, byte[]> read(Path jar) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        // Also checks each entry's CRC and size against its local header
+        try (var in = new ZipInputStream(Files.newInputStream(jar))) {
+            ZipEntry entry;
+            while ((entry = in.getNextEntry()) != null) {
+                entries.put(entry.getName(), in.readAllBytes());
+            }
+        }
+        return entries;
+    }
+
+    private static void put(ZipOutputStream out, String name, byte[] contents, int method) throws IOException {
+        var entry = new ZipEntry(name);
+        entry.setMethod(method);
+        if (method == ZipEntry.STORED) {
+            var crc = new CRC32();
+            crc.update(contents);
+            entry.setSize(contents.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        out.write(contents);
+        out.closeEntry();
+    }
+}
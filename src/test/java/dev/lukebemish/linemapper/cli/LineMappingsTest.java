@@ -0,0 +1,57 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class LineMappingsTest {
+    private static final String PATCH = "@@ -1,1 +1,2 @@\n line\n+added\n";
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void namesTheSourceThatFailedToCompose() throws IOException {
+        var patches = directory.resolve("patches.zip");
+        try (var out = new ZipOutputStream(Files.newOutputStream(patches))) {
+            var contents = PATCH.getBytes(StandardCharsets.UTF_8);
+            var entry = new ZipEntry("pkg/Broken.java.patch");
+            entry.setMethod(ZipEntry.STORED);
+            var crc = new CRC32();
+            crc.update(contents);
+            entry.setSize(contents.length);
+            entry.setCrc(crc.getValue());
+            out.putNextEntry(entry);
+            out.write(contents);
+            out.closeEntry();
+        }
+        // Corrupts the stored patch after the fact, so that only decoding it fails
+        var bytes = Files.readAllBytes(patches);
+        int start = new String(bytes, StandardCharsets.ISO_8859_1).indexOf("+added");
+        bytes[start + 1] ^= 1;
+        Files.write(patches, bytes);
+
+        try (var executor = Executors.newFixedThreadPool(1);
+             var mappings = LineMappings.index(List.of(), List.of(patches), List.of(), executor)) {
+            var thrown = assertThrows(UncheckedIOException.class, () -> mappings.sourceMapping("pkg/Broken$Inner"));
+            assertEquals("Failed to load line mappings for `pkg/Broken`", thrown.getMessage());
+            // The failure is not kept, so the next class from the source tries again
+            assertThrows(UncheckedIOException.class, () -> mappings.sourceMapping("pkg/Broken"));
+            assertEquals(2, mappings.composed());
+            assertEquals(LineMappings.SourceMapping.NONE, mappings.sourceMapping("pkg/Other"));
+        }
+    }
+}
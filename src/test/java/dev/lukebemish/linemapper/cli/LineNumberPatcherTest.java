@@ -0,0 +1,74 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class LineNumberPatcherTest {
+    private static final int SHIFT = 100;
+
+    @Test
+    void patchesWithDuplicateAttributeNames() {
+        var original = Fixtures.classFile("pkg/Duplicated", 2, 10);
+        // Unreferenced copies of both attribute names, after the ones the class actually uses
+        var contents = appendUtf8(appendUtf8(original, "Code"), "LineNumberTable");
+        var lines = lineNumbers(original);
+        var table = new LineTable.Builder();
+        for (int line : lines) {
+            table.add(line, line + SHIFT);
+        }
+        var remapper = LineRemapper.compose(table.build(), List.of());
+
+        assertTrue(LineNumberPatcher.patch(contents, contents.length, remapper));
+        var patched = lineNumbers(contents);
+        assertEquals(lines.size(), patched.size());
+        for (int i = 0; i < lines.size(); i++) {
+            assertEquals(lines.get(i) + SHIFT, (int) patched.get(i));
+        }
+    }
+
+    /**
+     * Adds a Utf8 constant to the end of a class's constant pool, leaving every existing index as it was.
+     */
+    private static byte[] appendUtf8(byte[] contents, String value) {
+        var bytes = value.getBytes(StandardCharsets.UTF_8);
+        int end = new ClassReader(contents).header;
+        var appended = new byte[contents.length + 3 + bytes.length];
+        System.arraycopy(contents, 0, appended, 0, end);
+        appended[end] = 1;
+        appended[end + 1] = (byte) (bytes.length >>> 8);
+        appended[end + 2] = (byte) bytes.length;
+        System.arraycopy(bytes, 0, appended, end + 3, bytes.length);
+        System.arraycopy(contents, end, appended, end + 3 + bytes.length, contents.length - end);
+        int poolCount = (((appended[8] & 0xFF) << 8) | (appended[9] & 0xFF)) + 1;
+        appended[8] = (byte) (poolCount >>> 8);
+        appended[9] = (byte) poolCount;
+        return appended;
+    }
+
+    private static List<Integer> lineNumbers(byte[] contents) {
+        List<Integer> lines = new ArrayList<>();
+        new ClassReader(contents).accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+                return new MethodVisitor(Opcodes.ASM9) {
+                    @Override
+                    public void visitLineNumber(int line, Label start) {
+                        lines.add(line);
+                    }
+                };
+            }
+        }, 0);
+        return lines;
+    }
+}
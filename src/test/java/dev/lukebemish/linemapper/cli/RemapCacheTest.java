@@ -0,0 +1,68 @@
+package dev.lukebemish.linemapper.cli;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class RemapCacheTest {
+    private static final RemapCache.Key FIRST = new RemapCache.Key(1, 2, 3, 4);
+    private static final RemapCache.Key SECOND = new RemapCache.Key(5, 6, 7, 8);
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void hitsAfterPartialTrailingRecord() throws IOException {
+        try (var cache = RemapCache.open(directory)) {
+            cache.put(FIRST, compressed(1, 2, 3));
+        }
+        // What an interrupted run could leave behind: part of a record past the last whole one
+        Files.write(directory.resolve("index"), new byte[7], StandardOpenOption.APPEND);
+        try (var cache = RemapCache.open(directory)) {
+            assertHit(cache, FIRST, 1, 2, 3);
+            cache.put(SECOND, compressed(4, 5));
+        }
+        try (var cache = RemapCache.open(directory)) {
+            assertHit(cache, FIRST, 1, 2, 3);
+            assertHit(cache, SECOND, 4, 5);
+        }
+    }
+
+    @Test
+    void hitsAfterPartialHeader() throws IOException {
+        Files.createDirectories(directory);
+        Files.write(directory.resolve("index"), new byte[2]);
+        try (var cache = RemapCache.open(directory)) {
+            cache.put(FIRST, compressed(1, 2, 3));
+        }
+        try (var cache = RemapCache.open(directory)) {
+            assertHit(cache, FIRST, 1, 2, 3);
+        }
+    }
+
+    private static ArchiveWriter.Compressed compressed(int... bytes) {
+        var data = new byte[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            data[i] = (byte) bytes[i];
+        }
+        return new ArchiveWriter.Compressed(ArchiveEntry.STORED, 0, data.length, ByteBuffer.wrap(data));
+    }
+
+    private static void assertHit(RemapCache cache, RemapCache.Key key, int... bytes) {
+        var found = cache.get(key);
+        assertNotNull(found);
+        var data = new byte[found.data().remaining()];
+        found.data().duplicate().get(data);
+        assertArrayEquals(compressed(bytes).data().array(), data);
+        assertEquals(bytes.length, found.size());
+    }
+}